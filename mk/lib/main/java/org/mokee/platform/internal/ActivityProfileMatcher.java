@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.platform.internal;
+
+import android.content.ComponentName;
+import android.util.ArrayMap;
+import android.util.LruCache;
+import android.util.Slog;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maps activities to the performance profile configured for them.
+ *
+ * Rules are regular expressions matched against the flattened component
+ * name, and the first rule which matches wins. They are compiled once into
+ * three tiers which all preserve that order:
+ * <ul>
+ *   <li>plain literals are looked up in a hash map,</li>
+ *   <li>literals with '.' wildcards, optionally ending in ".*" (the usual
+ *       package and class prefixes), are walked in a trie,</li>
+ *   <li>everything else is folded into one alternation, so the input is
+ *       scanned by a single regex.</li>
+ * </ul>
+ * Results are memoized per component. Safe to use from any thread.
+ */
+final class ActivityProfileMatcher {
+
+    private static final String TAG = "ActivityProfileMatcher";
+
+    private static final int NO_RULE = Integer.MAX_VALUE;
+
+    private static final int CACHE_SIZE = 64;
+
+    // Profile of each rule, by position in the configuration
+    private final int[] mProfiles;
+
+    private final HashMap<String, Integer> mLiterals = new HashMap<>();
+    private final TrieNode mTrie = new TrieNode();
+    private int mTrieSize;
+
+    // Alternation of the remaining rules, with the wrapping group and rule of each
+    private final Pattern mCombined;
+    private final int[] mCombinedGroups;
+    private final int[] mCombinedRules;
+
+    // Rules which can't be safely spliced into the alternation, in rule order
+    private final ArrayList<Pattern> mStandalone = new ArrayList<>();
+    private final ArrayList<Integer> mStandaloneRules = new ArrayList<>();
+
+    private final LruCache<ComponentName, Integer> mCache =
+            new LruCache<ComponentName, Integer>(CACHE_SIZE);
+
+    /**
+     * @param rules the regular expressions, in order of precedence
+     * @param profiles the profile for each rule
+     */
+    ActivityProfileMatcher(String[] rules, int[] profiles) {
+        mProfiles = profiles;
+
+        final StringBuilder combined = new StringBuilder();
+        final ArrayList<Integer> groups = new ArrayList<>();
+        final ArrayList<Integer> combinedRules = new ArrayList<>();
+        final ArrayList<Pattern> combinedPatterns = new ArrayList<>();
+        int nextGroup = 1;
+
+        for (int i = 0; i < rules.length; i++) {
+            // compile each rule on its own first, so bad ones fail just like before
+            final Pattern pattern = Pattern.compile(rules[i]);
+
+            if (addSimpleRule(rules[i], i)) {
+                continue;
+            }
+
+            if (needsStandalone(rules[i])) {
+                mStandalone.add(pattern);
+                mStandaloneRules.add(i);
+                continue;
+            }
+
+            if (combined.length() > 0) {
+                combined.append('|');
+            }
+            combined.append('(').append(rules[i]).append(')');
+            groups.add(nextGroup);
+            combinedRules.add(i);
+            combinedPatterns.add(pattern);
+            nextGroup += 1 + pattern.matcher("").groupCount();
+        }
+
+        Pattern compiled = null;
+        if (combined.length() > 0) {
+            try {
+                compiled = Pattern.compile(combined.toString());
+            } catch (PatternSyntaxException e) {
+                // every rule compiles on its own, so just match them one by one
+                Slog.w(TAG, "Can't combine app triggers, matching them separately", e);
+                mergeStandalone(combinedPatterns, combinedRules);
+                groups.clear();
+                combinedRules.clear();
+            }
+        }
+
+        mCombined = compiled;
+        mCombinedGroups = toArray(groups);
+        mCombinedRules = toArray(combinedRules);
+    }
+
+    /**
+     * @return the number of rules
+     */
+    int size() {
+        return mProfiles.length;
+    }
+
+    /**
+     * @return the profile of the first rule matching the activity, or -1 if none does
+     */
+    int getProfile(ComponentName cn) {
+        if (cn == null || mProfiles.length == 0) {
+            return -1;
+        }
+
+        Integer profile = mCache.get(cn);
+        if (profile == null) {
+            final int rule = findRule(cn.flattenToString());
+            profile = rule == NO_RULE ? -1 : mProfiles[rule];
+            mCache.put(cn, profile);
+        }
+        return profile;
+    }
+
+    private int findRule(String name) {
+        int best = NO_RULE;
+
+        final Integer literal = mLiterals.get(name);
+        if (literal != null) {
+            best = literal;
+        }
+
+        best = mTrie.find(name, 0, best);
+
+        if (mCombined != null && mCombinedRules[0] < best) {
+            final Matcher m = mCombined.matcher(name);
+            if (m.matches()) {
+                // alternatives are tried in order, so the first one set is the first rule
+                for (int i = 0; i < mCombinedGroups.length; i++) {
+                    if (m.start(mCombinedGroups[i]) >= 0) {
+                        best = Math.min(best, mCombinedRules[i]);
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < mStandalone.size(); i++) {
+            final int rule = mStandaloneRules.get(i);
+            if (rule >= best) {
+                break;
+            }
+            if (mStandalone.get(i).matcher(name).matches()) {
+                best = rule;
+                break;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Add a rule to the literal map or the trie if it only consists of
+     * literal characters and '.', with an optional trailing ".*".
+     *
+     * @return false if the rule needs the regex engine
+     */
+    private boolean addSimpleRule(String rule, int index) {
+        final StringBuilder literal = new StringBuilder(rule.length());
+        // parallel to literal, true where the character is a '.' wildcard
+        final ArrayList<Boolean> wildcards = new ArrayList<>(rule.length());
+        boolean hasWildcard = false;
+        boolean prefix = false;
+
+        final int length = rule.length();
+        for (int i = 0; i < length; i++) {
+            final char c = rule.charAt(i);
+            if (c == '\\') {
+                // a backslash before anything but a letter or digit is a plain escape
+                if (i + 1 >= length || Character.isLetterOrDigit(rule.charAt(i + 1))) {
+                    return false;
+                }
+                literal.append(rule.charAt(++i));
+                wildcards.add(false);
+            } else if (c == '.') {
+                if (i == length - 2 && rule.charAt(i + 1) == '*') {
+                    prefix = true;
+                    break;
+                }
+                literal.append(c);
+                wildcards.add(true);
+                hasWildcard = true;
+            } else if ("[](){}*+?|^$".indexOf(c) >= 0) {
+                return false;
+            } else {
+                literal.append(c);
+                wildcards.add(false);
+            }
+        }
+
+        if (!hasWildcard && !prefix) {
+            final String key = literal.toString();
+            if (!mLiterals.containsKey(key)) {
+                mLiterals.put(key, index);
+            }
+            return true;
+        }
+
+        TrieNode node = mTrie;
+        node.minRule = Math.min(node.minRule, index);
+        for (int i = 0; i < literal.length(); i++) {
+            node = node.child(literal.charAt(i), wildcards.get(i));
+            node.minRule = Math.min(node.minRule, index);
+        }
+        if (prefix) {
+            node.prefixRule = Math.min(node.prefixRule, index);
+        } else {
+            node.exactRule = Math.min(node.exactRule, index);
+        }
+        mTrieSize++;
+        return true;
+    }
+
+    /**
+     * Back references and named groups depend on group numbering and names,
+     * and an unterminated \Q quote would swallow the wrapping group, so such
+     * rules are matched on their own.
+     */
+    private static boolean needsStandalone(String rule) {
+        for (int i = 0; i < rule.length() - 1; i++) {
+            final char c = rule.charAt(i);
+            final char next = rule.charAt(i + 1);
+            if (c == '\\') {
+                if (Character.isDigit(next) || next == 'k' || next == 'Q') {
+                    return true;
+                }
+                i++;
+            } else if (c == '(' && next == '?' && i + 2 < rule.length()
+                    && rule.charAt(i + 2) == '<') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge rules into the standalone list, keeping it in rule order.
+     */
+    private void mergeStandalone(ArrayList<Pattern> patterns, ArrayList<Integer> rules) {
+        final ArrayList<Pattern> mergedPatterns = new ArrayList<>();
+        final ArrayList<Integer> mergedRules = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < mStandalone.size() || j < patterns.size()) {
+            if (j >= patterns.size() ||
+                    (i < mStandalone.size() && mStandaloneRules.get(i) < rules.get(j))) {
+                mergedPatterns.add(mStandalone.get(i));
+                mergedRules.add(mStandaloneRules.get(i));
+                i++;
+            } else {
+                mergedPatterns.add(patterns.get(j));
+                mergedRules.add(rules.get(j));
+                j++;
+            }
+        }
+        mStandalone.clear();
+        mStandalone.addAll(mergedPatterns);
+        mStandaloneRules.clear();
+        mStandaloneRules.addAll(mergedRules);
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+        final int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" App trigger count: " + mProfiles.length + " (literal=" + mLiterals.size() +
+                " trie=" + mTrieSize +
+                " regex=" + mCombinedRules.length + " standalone=" + mStandalone.size() + ")");
+        pw.println(" App trigger cache: size=" + mCache.size() + " hits=" + mCache.hitCount() +
+                " misses=" + mCache.missCount());
+    }
+
+    /**
+     * Node of the rule trie. Each node knows the first rule which ends on it
+     * exactly, the first rule which accepts any suffix from it, and the first
+     * rule anywhere below it, so walks stop as soon as they can't do better.
+     */
+    private static final class TrieNode {
+        ArrayMap<Character, TrieNode> children;
+        TrieNode wildcard;
+
+        int exactRule = NO_RULE;
+        int prefixRule = NO_RULE;
+        int minRule = NO_RULE;
+
+        TrieNode child(char c, boolean isWildcard) {
+            if (isWildcard) {
+                if (wildcard == null) {
+                    wildcard = new TrieNode();
+                }
+                return wildcard;
+            }
+            if (children == null) {
+                children = new ArrayMap<>();
+            }
+            TrieNode node = children.get(c);
+            if (node == null) {
+                node = new TrieNode();
+                children.put(c, node);
+            }
+            return node;
+        }
+
+        int find(String name, int pos, int best) {
+            if (minRule >= best) {
+                return best;
+            }
+            best = Math.min(best, prefixRule);
+            if (pos == name.length()) {
+                return Math.min(best, exactRule);
+            }
+            if (children != null) {
+                final TrieNode node = children.get(name.charAt(pos));
+                if (node != null) {
+                    best = node.find(name, pos + 1, best);
+                }
+            }
+            if (wildcard != null) {
+                best = wildcard.find(name, pos + 1, best);
+            }
+            return best;
+        }
+    }
+}
@@ -16,16 +16,27 @@
  */
 package org.mokee.platform.internal;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseBooleanArray;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import mokee.app.MKContextConstants;
@@ -38,6 +49,8 @@ import mokee.hardware.HSIC;
 import mokee.hardware.TouchscreenGesture;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -62,6 +75,7 @@ import org.mokee.hardware.TouchscreenGestures;
 import org.mokee.hardware.TouchscreenHovering;
 import org.mokee.hardware.UniqueDeviceId;
 import org.mokee.hardware.VibratorHW;
+import org.mokee.internal.util.FileUtils;
 
 /** @hide */
 public class MKHardwareService extends MKSystemService implements ThermalUpdateCallback {
@@ -71,8 +85,21 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
     private final Context mContext;
     private final MKHardwareInterface mMkHwImpl;
-    private int mCurrentThermalState = ThermalListenerCallback.State.STATE_UNKNOWN;
+    // The backends are probed once, the feature set doesn't change at runtime
+    private final int mSupportedFeatures;
+
+    // Uids known to hold HARDWARE_ABSTRACTION_ACCESS, dropped on package and
+    // permission changes. Only used once those are being watched.
+    private final SparseBooleanArray mPermittedUids = new SparseBooleanArray();
+    private int mPermissionGeneration;
+    private volatile boolean mPermissionCacheEnabled;
+
+    // Latest state reported by the HAL, delivered to listeners from mThermalHandler
+    private volatile int mCurrentThermalState = ThermalListenerCallback.State.STATE_UNKNOWN;
+    private int mDispatchedThermalState = ThermalListenerCallback.State.STATE_UNKNOWN;
     private RemoteCallbackList<IThermalListenerCallback> mRemoteCallbackList;
+    private ServiceThread mThermalThread;
+    private ThermalHandler mThermalHandler;
 
     private final ArrayMap<String, String> mDisplayModeMappings =
             new ArrayMap<String, String>();
@@ -129,6 +156,11 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         private int mSupportedFeatures = 0;
 
+        // Parsed hardware state, only changed through this service. Kept in the
+        // layout MKHardwareManager expects, filled on first use.
+        private int[] mCalibration;
+        private int[] mVibrator;
+
         public LegacyMKHardware() {
             if (AdaptiveBacklight.isSupported())
                 mSupportedFeatures |= MKHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT;
@@ -247,27 +279,39 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
             return builder.toString();
         }
 
-        public int[] getDisplayColorCalibration() {
-            int[] rgb = splitStringToInt(DisplayColorCalibration.getCurColors(), " ");
-            if (rgb == null || rgb.length != 3) {
-                Log.e(TAG, "Invalid color calibration string");
-                return null;
+        public synchronized int[] getDisplayColorCalibration() {
+            if (mCalibration == null) {
+                int[] rgb = splitStringToInt(DisplayColorCalibration.getCurColors(), " ");
+                if (rgb == null || rgb.length != 3) {
+                    Log.e(TAG, "Invalid color calibration string");
+                    return null;
+                }
+                mCalibration = new int[6];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_RED_INDEX] = rgb[0];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_GREEN_INDEX] = rgb[1];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_BLUE_INDEX] = rgb[2];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_DEFAULT_INDEX] =
+                    DisplayColorCalibration.getDefValue();
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_MIN_INDEX] =
+                    DisplayColorCalibration.getMinValue();
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_MAX_INDEX] =
+                    DisplayColorCalibration.getMaxValue();
             }
-            int[] currentCalibration = new int[6];
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_RED_INDEX] = rgb[0];
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_GREEN_INDEX] = rgb[1];
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_BLUE_INDEX] = rgb[2];
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_DEFAULT_INDEX] =
-                DisplayColorCalibration.getDefValue();
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_MIN_INDEX] =
-                DisplayColorCalibration.getMinValue();
-            currentCalibration[MKHardwareManager.COLOR_CALIBRATION_MAX_INDEX] =
-                DisplayColorCalibration.getMaxValue();
-            return currentCalibration;
+            return mCalibration.clone();
         }
 
-        public boolean setDisplayColorCalibration(int[] rgb) {
-            return DisplayColorCalibration.setColors(rgbToString(rgb));
+        public synchronized boolean setDisplayColorCalibration(int[] rgb) {
+            if (!DisplayColorCalibration.setColors(rgbToString(rgb))) {
+                // don't know what the hardware ended up with
+                mCalibration = null;
+                return false;
+            }
+            if (mCalibration != null) {
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_RED_INDEX] = rgb[0];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_GREEN_INDEX] = rgb[1];
+                mCalibration[MKHardwareManager.COLOR_CALIBRATION_BLUE_INDEX] = rgb[2];
+            }
+            return true;
         }
 
         public int getNumGammaControls() {
@@ -295,18 +339,30 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
             return DisplayGammaCalibration.setGamma(idx, rgbToString(rgb));
         }
 
-        public int[] getVibratorIntensity() {
-            int[] vibrator = new int[5];
-            vibrator[MKHardwareManager.VIBRATOR_INTENSITY_INDEX] = VibratorHW.getCurIntensity();
-            vibrator[MKHardwareManager.VIBRATOR_DEFAULT_INDEX] = VibratorHW.getDefaultIntensity();
-            vibrator[MKHardwareManager.VIBRATOR_MIN_INDEX] = VibratorHW.getMinIntensity();
-            vibrator[MKHardwareManager.VIBRATOR_MAX_INDEX] = VibratorHW.getMaxIntensity();
-            vibrator[MKHardwareManager.VIBRATOR_WARNING_INDEX] = VibratorHW.getWarningThreshold();
-            return vibrator;
+        public synchronized int[] getVibratorIntensity() {
+            if (mVibrator == null) {
+                mVibrator = new int[5];
+                mVibrator[MKHardwareManager.VIBRATOR_INTENSITY_INDEX] =
+                    VibratorHW.getCurIntensity();
+                mVibrator[MKHardwareManager.VIBRATOR_DEFAULT_INDEX] =
+                    VibratorHW.getDefaultIntensity();
+                mVibrator[MKHardwareManager.VIBRATOR_MIN_INDEX] = VibratorHW.getMinIntensity();
+                mVibrator[MKHardwareManager.VIBRATOR_MAX_INDEX] = VibratorHW.getMaxIntensity();
+                mVibrator[MKHardwareManager.VIBRATOR_WARNING_INDEX] =
+                    VibratorHW.getWarningThreshold();
+            }
+            return mVibrator.clone();
         }
 
-        public boolean setVibratorIntensity(int intensity) {
-            return VibratorHW.setIntensity(intensity);
+        public synchronized boolean setVibratorIntensity(int intensity) {
+            if (!VibratorHW.setIntensity(intensity)) {
+                mVibrator = null;
+                return false;
+            }
+            if (mVibrator != null) {
+                mVibrator[MKHardwareManager.VIBRATOR_INTENSITY_INDEX] = intensity;
+            }
+            return true;
         }
 
         public String getLtoSource() {
@@ -410,6 +466,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
         super(context);
         mContext = context;
         mMkHwImpl = getImpl(context);
+        mSupportedFeatures = mMkHwImpl.getSupportedFeatures();
         publishBinderService(MKContextConstants.MK_HARDWARE_SERVICE, mService);
 
         final String[] mappings = mContext.getResources().getStringArray(
@@ -443,26 +500,141 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
     @Override
     public void onStart() {
+        // Clients may have cached state from a previous instance
+        bumpHardwareVersion();
+
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mPackageReceiver, UserHandle.ALL, filter, null, null);
+        mContext.getPackageManager().addOnPermissionsChangeListener(mPermissionsListener);
+        mPermissionCacheEnabled = true;
+
         if (ThermalMonitor.isSupported()) {
-            ThermalMonitor.initialize(this);
+            // The monitor may report right away, so the dispatcher has to be up first
             mRemoteCallbackList = new RemoteCallbackList<IThermalListenerCallback>();
+            mThermalThread = new ServiceThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND, false /*allowIo*/);
+            mThermalThread.start();
+            mThermalHandler = new ThermalHandler(mThermalThread.getLooper());
+            ThermalMonitor.initialize(this);
         }
     }
 
+    /**
+     * Called from the thermal HAL. Only records the state and wakes up the
+     * dispatcher, so a slow listener never holds up the HAL. States reported
+     * while a dispatch is pending are collapsed into the latest one.
+     */
     @Override
     public void setThermalState(int state) {
         mCurrentThermalState = state;
-        int i = mRemoteCallbackList.beginBroadcast();
-        while (i > 0) {
-            i--;
-            try {
-                mRemoteCallbackList.getBroadcastItem(i).onThermalChanged(state);
-            } catch (RemoteException e) {
-                // The RemoteCallbackList will take care of removing
-                // the dead object for us.
+        if (!mThermalHandler.hasMessages(ThermalHandler.MSG_DISPATCH_THERMAL_STATE)) {
+            mThermalHandler.sendEmptyMessage(ThermalHandler.MSG_DISPATCH_THERMAL_STATE);
+        }
+    }
+
+    /**
+     * Handler which delivers thermal state changes to the registered listeners.
+     * Listeners are oneway, so a slow or dead one can't stall the others.
+     */
+    private final class ThermalHandler extends Handler {
+        static final int MSG_DISPATCH_THERMAL_STATE = 1;
+
+        public ThermalHandler(Looper looper) {
+            super(looper);
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_DISPATCH_THERMAL_STATE:
+                    dispatchThermalState();
+                    break;
+            }
+        }
+
+        private void dispatchThermalState() {
+            final int state = mCurrentThermalState;
+            if (state == mDispatchedThermalState) {
+                // flapped back before anyone was told
+                return;
+            }
+            mDispatchedThermalState = state;
+
+            int i = mRemoteCallbackList.beginBroadcast();
+            while (i > 0) {
+                i--;
+                try {
+                    mRemoteCallbackList.getBroadcastItem(i).onThermalChanged(state);
+                } catch (RemoteException e) {
+                    // The RemoteCallbackList will take care of removing
+                    // the dead object for us.
+                }
+            }
+            mRemoteCallbackList.finishBroadcast();
+        }
+    }
+
+    /**
+     * Same as enforcing HARDWARE_ABSTRACTION_ACCESS, but remembers callers which
+     * passed. Denials always go through the full check to throw.
+     */
+    private void enforceHardwareAccess() {
+        final int uid = Binder.getCallingUid();
+        int generation = -1;
+        if (mPermissionCacheEnabled) {
+            synchronized (mPermittedUids) {
+                if (mPermittedUids.get(uid)) {
+                    return;
+                }
+                generation = mPermissionGeneration;
+            }
+        }
+
+        mContext.enforceCallingOrSelfPermission(
+                mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+
+        synchronized (mPermittedUids) {
+            // don't cache a result that may predate a revocation
+            if (generation == mPermissionGeneration) {
+                mPermittedUids.put(uid, true);
+            }
+        }
+    }
+
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mPermittedUids) {
+                mPermittedUids.clear();
+                mPermissionGeneration++;
             }
         }
-        mRemoteCallbackList.finishBroadcast();
+    };
+
+    private final PackageManager.OnPermissionsChangedListener mPermissionsListener =
+            new PackageManager.OnPermissionsChangedListener() {
+        @Override
+        public void onPermissionsChanged(int uid) {
+            synchronized (mPermittedUids) {
+                mPermittedUids.delete(uid);
+                mPermissionGeneration++;
+            }
+        }
+    };
+
+    /**
+     * Tell clients that the state they cached in MKHardwareManager is stale
+     */
+    private synchronized void bumpHardwareVersion() {
+        long version = SystemProperties.getLong(
+                MKHardwareManager.SYS_PROP_MK_HARDWARE_VERSION, 0) + 1;
+        SystemProperties.set(MKHardwareManager.SYS_PROP_MK_HARDWARE_VERSION,
+                Long.toString(version));
     }
 
     private DisplayMode remapDisplayMode(DisplayMode in) {
@@ -481,20 +653,18 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
     private final IBinder mService = new IMKHardwareService.Stub() {
 
         private boolean isSupported(int feature) {
-            return (getSupportedFeatures() & feature) == feature;
+            return (mSupportedFeatures & feature) == feature;
         }
 
         @Override
         public int getSupportedFeatures() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
-            return mMkHwImpl.getSupportedFeatures();
+            enforceHardwareAccess();
+            return mSupportedFeatures;
         }
 
         @Override
         public boolean get(int feature) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
@@ -504,19 +674,20 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean set(int feature, boolean enable) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(feature)) {
                 Log.e(TAG, "feature " + feature + " is not supported");
                 return false;
             }
-            return mMkHwImpl.set(feature, enable);
+            final boolean result = mMkHwImpl.set(feature, enable);
+            // bump even on failure, the hardware may have changed partially
+            bumpHardwareVersion();
+            return result;
         }
 
         @Override
         public int[] getDisplayColorCalibration() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION)) {
                 Log.e(TAG, "Display color calibration is not supported");
                 return null;
@@ -526,8 +697,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setDisplayColorCalibration(int[] rgb) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_COLOR_CALIBRATION)) {
                 Log.e(TAG, "Display color calibration is not supported");
                 return false;
@@ -541,8 +711,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int getNumGammaControls() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return 0;
@@ -552,8 +721,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int[] getDisplayGammaCalibration(int idx) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return null;
@@ -563,8 +731,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setDisplayGammaCalibration(int idx, int[] rgb) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_GAMMA_CALIBRATION)) {
                 Log.e(TAG, "Display gamma calibration is not supported");
                 return false;
@@ -574,8 +741,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int[] getVibratorIntensity() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_VIBRATOR)) {
                 Log.e(TAG, "Vibrator is not supported");
                 return null;
@@ -585,8 +751,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setVibratorIntensity(int intensity) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_VIBRATOR)) {
                 Log.e(TAG, "Vibrator is not supported");
                 return false;
@@ -596,8 +761,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public String getLtoSource() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_LONG_TERM_ORBITS)) {
                 Log.e(TAG, "Long term orbits is not supported");
                 return null;
@@ -607,8 +771,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public String getLtoDestination() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_LONG_TERM_ORBITS)) {
                 Log.e(TAG, "Long term orbits is not supported");
                 return null;
@@ -618,8 +781,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public long getLtoDownloadInterval() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_LONG_TERM_ORBITS)) {
                 Log.e(TAG, "Long term orbits is not supported");
                 return 0;
@@ -629,8 +791,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public String getSerialNumber() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_SERIAL_NUMBER)) {
                 Log.e(TAG, "Serial number is not supported");
                 return null;
@@ -640,8 +801,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public String getUniqueDeviceId() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_UNIQUE_DEVICE_ID)) {
                 Log.e(TAG, "Unique device ID is not supported");
                 return null;
@@ -651,8 +811,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean requireAdaptiveBacklightForSunlightEnhancement() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT)) {
                 Log.e(TAG, "Sunlight enhancement is not supported");
                 return false;
@@ -662,8 +821,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean isSunlightEnhancementSelfManaged() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_SUNLIGHT_ENHANCEMENT)) {
                 Log.e(TAG, "Sunlight enhancement is not supported");
                 return false;
@@ -673,8 +831,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public DisplayMode[] getDisplayModes() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -695,8 +852,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public DisplayMode getCurrentDisplayMode() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -706,8 +862,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public DisplayMode getDefaultDisplayMode() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return null;
@@ -717,13 +872,15 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setDisplayMode(DisplayMode mode, boolean makeDefault) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_DISPLAY_MODES)) {
                 Log.e(TAG, "Display modes are not supported");
                 return false;
             }
-            return mMkHwImpl.setDisplayMode(mode, makeDefault);
+            final boolean result = mMkHwImpl.setDisplayMode(mode, makeDefault);
+            // bump even on failure, the hardware may have changed partially
+            bumpHardwareVersion();
+            return result;
         }
 
         @Override
@@ -763,8 +920,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int getThermalState() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_THERMAL_MONITOR)) {
                 return mCurrentThermalState;
             }
@@ -773,8 +929,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean registerThermalListener(IThermalListenerCallback callback) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_THERMAL_MONITOR)) {
                 return mRemoteCallbackList.register(callback);
             }
@@ -783,8 +938,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean unRegisterThermalListener(IThermalListenerCallback callback) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_THERMAL_MONITOR)) {
                 return mRemoteCallbackList.unregister(callback);
             }
@@ -793,8 +947,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int getColorBalanceMin() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_COLOR_BALANCE)) {
                 return mMkHwImpl.getColorBalanceMin();
             }
@@ -803,8 +956,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int getColorBalanceMax() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_COLOR_BALANCE)) {
                 return mMkHwImpl.getColorBalanceMax();
             }
@@ -813,8 +965,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public int getColorBalance() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_COLOR_BALANCE)) {
                 return mMkHwImpl.getColorBalance();
             }
@@ -823,8 +974,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setColorBalance(int value) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_COLOR_BALANCE)) {
                 return mMkHwImpl.setColorBalance(value);
             }
@@ -833,8 +983,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public HSIC getPictureAdjustment() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_PICTURE_ADJUSTMENT)) {
                 return mMkHwImpl.getPictureAdjustment();
             }
@@ -843,8 +992,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public HSIC getDefaultPictureAdjustment() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_PICTURE_ADJUSTMENT)) {
                 return mMkHwImpl.getDefaultPictureAdjustment();
             }
@@ -853,8 +1001,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setPictureAdjustment(HSIC hsic) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_PICTURE_ADJUSTMENT) && hsic != null) {
                 return mMkHwImpl.setPictureAdjustment(hsic);
             }
@@ -863,8 +1010,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public float[] getPictureAdjustmentRanges() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (isSupported(MKHardwareManager.FEATURE_COLOR_BALANCE)) {
                 final List<Range<Float>> r = mMkHwImpl.getPictureAdjustmentRanges();
                 return new float[] {
@@ -879,8 +1025,7 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public TouchscreenGesture[] getTouchscreenGestures() {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return null;
@@ -890,13 +1035,27 @@ public class MKHardwareService extends MKSystemService implements ThermalUpdateC
 
         @Override
         public boolean setTouchscreenGestureEnabled(TouchscreenGesture gesture, boolean state) {
-            mContext.enforceCallingOrSelfPermission(
-                    mokee.platform.Manifest.permission.HARDWARE_ABSTRACTION_ACCESS, null);
+            enforceHardwareAccess();
             if (!isSupported(MKHardwareManager.FEATURE_TOUCHSCREEN_GESTURES)) {
                 Log.e(TAG, "Touchscreen gestures are not supported");
                 return false;
             }
             return mMkHwImpl.setTouchscreenGestureEnabled(gesture, state);
         }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+            pw.println();
+            pw.println("MKHardwareService State:");
+            if (mRemoteCallbackList != null) {
+                pw.println("  mCurrentThermalState=" + mCurrentThermalState);
+                pw.println("  thermal listeners=" +
+                        mRemoteCallbackList.getRegisteredCallbackCount());
+            }
+            pw.println("  Pooled file nodes:");
+            FileUtils.dumpNodes(pw);
+        }
     };
 }
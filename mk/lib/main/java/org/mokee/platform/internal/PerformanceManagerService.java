@@ -34,25 +34,29 @@ import android.os.Message;
 import android.os.PowerManagerInternal;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.Slog;
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
 
 import com.android.server.ServiceThread;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import mokee.app.MKContextConstants;
 import mokee.power.IPerformanceManager;
 import mokee.power.PerformanceManagerInternal;
 import mokee.power.PerformanceProfile;
+import mokee.power.PerformanceStats;
 
 import static mokee.power.PerformanceManager.PROFILE_BALANCED;
 import static mokee.power.PerformanceManager.PROFILE_HIGH_PERFORMANCE;
@@ -74,7 +78,7 @@ public class PerformanceManagerService extends MKSystemService {
 
     private final Context mContext;
 
-    private final LinkedHashMap<Pattern, Integer>    mAppProfiles = new LinkedHashMap<>();
+    private final ActivityProfileMatcher             mAppProfiles;
     private final ArrayMap<Integer, PerformanceProfile> mProfiles = new ArrayMap<>();
 
     private int mNumProfiles = 0;
@@ -96,6 +100,12 @@ public class PerformanceManagerService extends MKSystemService {
     // Max time (microseconds) to allow a CPU boost for
     private static final int MAX_CPU_BOOST_TIME = 5000000;
 
+    // Min time (microseconds) between boost hints triggered by the same uid
+    private static final int MIN_CPU_BOOST_INTERVAL = 20000;
+
+    // Time (microseconds) before a boost runs out to extend it
+    private static final int CPU_BOOST_EXTEND_MARGIN = 5000;
+
     // Standard weights
     private static final float WEIGHT_POWER_SAVE       = 0.0f;
     private static final float WEIGHT_BALANCED         = 0.5f;
@@ -110,7 +120,32 @@ public class PerformanceManagerService extends MKSystemService {
     private boolean mBoostEnabled        = true;
     private int     mUserProfile         = -1;
     private int     mActiveProfile       = -1;
-    private String  mCurrentActivityName = null;
+    private int     mCurrentAppProfile   = -1;
+
+    // Take lock when accessing the boost scheduler state below. Times are
+    // uptime in microseconds.
+    private final Object mBoostLock = new Object();
+    // End of the boost the HAL was last asked for
+    private long mBoostHintEnd;
+    // End of all accepted boost requests, the HAL is kept boosted until then
+    private long mBoostDeadline;
+    private boolean mBoostExtendPending;
+    // Time of the last hint triggered by each uid
+    private final SparseLongArray mBoostLastHint = new SparseLongArray();
+    private int mBoostRequests;
+    private int mBoostHints;
+    private int mBoostMerged;
+    private int mBoostThrottled;
+    // Boost requests and immediate hints of each uid
+    private final SparseIntArray mBoostRequestsByUid = new SparseIntArray();
+    private final SparseIntArray mBoostHintsByUid = new SparseIntArray();
+
+    // Take lock when accessing the profile statistics below. Only the handler
+    // updates them, once the PowerHAL has applied a profile.
+    private final Object mStatsLock = new Object();
+    private final ArrayMap<Integer, ProfileStats> mProfileStats = new ArrayMap<>();
+    private int mAppliedProfile = -1;
+    private long mAppliedProfileSince;
 
     // Dumpable circular buffer for boost logging
     private final BoostLog mBoostLog = new BoostLog();
@@ -118,6 +153,7 @@ public class PerformanceManagerService extends MKSystemService {
     // Events on the handler
     private static final int MSG_CPU_BOOST    = 1;
     private static final int MSG_SET_PROFILE  = 2;
+    private static final int MSG_EXTEND_BOOST = 3;
 
     public PerformanceManagerService(Context context) {
         super(context);
@@ -126,11 +162,14 @@ public class PerformanceManagerService extends MKSystemService {
         Resources res = context.getResources();
 
         String[] activities = res.getStringArray(R.array.config_auto_perf_activities);
+        ArrayList<String> rules = new ArrayList<>();
+        ArrayList<Integer> ruleProfiles = new ArrayList<>();
         if (activities != null && activities.length > 0) {
             for (int i = 0; i < activities.length; i++) {
                 String[] info = activities[i].split(",");
                 if (info.length == 2) {
-                    mAppProfiles.put(Pattern.compile(info[0]), Integer.valueOf(info[1]));
+                    rules.add(info[0]);
+                    ruleProfiles.add(Integer.valueOf(info[1]));
                     if (DEBUG) {
                         Slog.d(TAG, String.format(Locale.US,"App profile #%d: %s => %s",
                                 i, info[0], info[1]));
@@ -138,6 +177,12 @@ public class PerformanceManagerService extends MKSystemService {
                 }
             }
         }
+        int[] profiles = new int[ruleProfiles.size()];
+        for (int i = 0; i < profiles.length; i++) {
+            profiles[i] = ruleProfiles.get(i);
+        }
+        mAppProfiles = new ActivityProfileMatcher(
+                rules.toArray(new String[rules.size()]), profiles);
 
         // We need a higher priority thread to handle these requests in front of
         // everything else asynchronously
@@ -312,28 +357,20 @@ public class PerformanceManagerService extends MKSystemService {
 
         mActiveProfile = profile;
 
-        mHandler.obtainMessage(MSG_SET_PROFILE, profile,
-                (fromUser ? 1 : 0)).sendToTarget();
+        mHandler.obtainMessage(MSG_SET_PROFILE, profile, (fromUser ? 1 : 0),
+                SystemClock.elapsedRealtimeNanos()).sendToTarget();
 
         Binder.restoreCallingIdentity(token);
 
         return true;
     }
 
-    private int getProfileForActivity(String componentName) {
-        int profile = -1;
-        if (componentName != null) {
-            for (Map.Entry<Pattern, Integer> entry : mAppProfiles.entrySet()) {
-                if (entry.getKey().matcher(componentName).matches()) {
-                    profile = entry.getValue();
-                    break;
-                }
-            }
-        }
+    private int getProfileForActivity(ComponentName cn) {
+        int profile = mAppProfiles.getProfile(cn);
         if (DEBUG) {
-            Slog.d(TAG, "getProfileForActivity: activity=" + componentName + " profile=" + profile);
+            Slog.d(TAG, "getProfileForActivity: activity=" + cn + " profile=" + profile);
         }
-        return profile < 0 ? mUserProfile : profile;
+        return profile;
     }
 
     private static boolean shouldUseOptimizations(float weight) {
@@ -352,12 +389,185 @@ public class PerformanceManagerService extends MKSystemService {
         }
 
         if (duration > 0 && duration <= MAX_CPU_BOOST_TIME) {
-            mHandler.obtainMessage(MSG_CPU_BOOST, duration, 0).sendToTarget();
+            scheduleBoost(Binder.getCallingUid(), duration);
         } else {
             Slog.e(TAG, "Invalid boost duration: " + duration);
         }
     }
 
+    /**
+     * Merge a boost request into the running boost.
+     * <p>
+     * Requests only push out the boost deadline. The HAL is hinted right away
+     * only when no boost is running, at most once per MIN_CPU_BOOST_INTERVAL
+     * for each uid. A running boost is extended once, shortly before it runs
+     * out, for whatever is left until the deadline.
+     *
+     * @param uid      uid of the caller
+     * @param duration boost duration in microseconds
+     */
+    private void scheduleBoost(int uid, int duration) {
+        synchronized (mBoostLock) {
+            mBoostRequests++;
+            mBoostRequestsByUid.put(uid, mBoostRequestsByUid.get(uid) + 1);
+
+            final long now = SystemClock.uptimeMillis() * 1000;
+            final long end = now + duration;
+            if (end <= mBoostDeadline) {
+                // covered by what was asked for already
+                mBoostMerged++;
+                return;
+            }
+            mBoostDeadline = end;
+
+            if (now < mBoostHintEnd) {
+                mBoostMerged++;
+                scheduleBoostExtensionLocked(mBoostHintEnd - CPU_BOOST_EXTEND_MARGIN, now);
+                return;
+            }
+
+            final int index = mBoostLastHint.indexOfKey(uid);
+            if (index >= 0) {
+                final long earliest = mBoostLastHint.valueAt(index) + MIN_CPU_BOOST_INTERVAL;
+                if (now < earliest) {
+                    mBoostThrottled++;
+                    scheduleBoostExtensionLocked(earliest, now);
+                    return;
+                }
+            }
+
+            final int hint = startBoostHintLocked(now);
+            mBoostLastHint.put(uid, now);
+            mBoostHintsByUid.put(uid, mBoostHintsByUid.get(uid) + 1);
+            mHandler.obtainMessage(MSG_CPU_BOOST, hint, uid).sendToTarget();
+        }
+    }
+
+    /**
+     * Must call with mBoostLock held.
+     *
+     * @return the duration to hint the HAL with, capped to MAX_CPU_BOOST_TIME
+     */
+    private int startBoostHintLocked(long now) {
+        final int hint = (int) Math.min(mBoostDeadline - now, MAX_CPU_BOOST_TIME);
+        mBoostHintEnd = now + hint;
+        mBoostHints++;
+        return hint;
+    }
+
+    private void scheduleBoostExtensionLocked(long when, long now) {
+        if (mBoostExtendPending) {
+            return;
+        }
+        mBoostExtendPending = true;
+        mHandler.sendEmptyMessageDelayed(MSG_EXTEND_BOOST, Math.max(when - now, 0) / 1000);
+    }
+
+    /**
+     * Called on the handler when a running boost is about to run out or a
+     * throttled request is due.
+     *
+     * @return the duration to hint the HAL with, or 0 if nothing is left to do
+     */
+    private int extendBoost() {
+        synchronized (mBoostLock) {
+            mBoostExtendPending = false;
+
+            final long now = SystemClock.uptimeMillis() * 1000;
+            if (mBoostDeadline <= mBoostHintEnd || mBoostDeadline <= now) {
+                return 0;
+            }
+            if (now < mBoostHintEnd - CPU_BOOST_EXTEND_MARGIN) {
+                // the running boost still has a while to go
+                scheduleBoostExtensionLocked(mBoostHintEnd - CPU_BOOST_EXTEND_MARGIN, now);
+                return 0;
+            }
+            return startBoostHintLocked(now);
+        }
+    }
+
+    /**
+     * Called on the handler once the PowerHAL has applied a profile.
+     *
+     * @param profile     the profile
+     * @param requestTime elapsed realtime in nanoseconds when it was requested
+     */
+    private void noteProfileApplied(int profile, long requestTime) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        final long nowMillis = now / 1000000;
+        final long latency = (now - requestTime) / 1000;
+
+        synchronized (mStatsLock) {
+            if (mAppliedProfile >= 0) {
+                getProfileStatsLocked(mAppliedProfile).residency +=
+                        nowMillis - mAppliedProfileSince;
+            }
+            mAppliedProfile = profile;
+            mAppliedProfileSince = nowMillis;
+
+            final ProfileStats stats = getProfileStatsLocked(profile);
+            stats.switches++;
+            stats.latencyTotal += latency;
+            stats.latencyMax = Math.max(stats.latencyMax, latency);
+        }
+    }
+
+    private ProfileStats getProfileStatsLocked(int profile) {
+        ProfileStats stats = mProfileStats.get(profile);
+        if (stats == null) {
+            stats = new ProfileStats();
+            mProfileStats.put(profile, stats);
+        }
+        return stats;
+    }
+
+    private PerformanceStats getPerformanceStatsInternal() {
+        final int[] profileIds;
+        final long[] residency;
+        final int[] switches;
+        final long[] latencyTotal;
+        final long[] latencyMax;
+        synchronized (mStatsLock) {
+            final int count = mProfileStats.size();
+            profileIds = new int[count];
+            residency = new long[count];
+            switches = new int[count];
+            latencyTotal = new long[count];
+            latencyMax = new long[count];
+
+            final long nowMillis = SystemClock.elapsedRealtime();
+            for (int i = 0; i < count; i++) {
+                final ProfileStats stats = mProfileStats.valueAt(i);
+                profileIds[i] = mProfileStats.keyAt(i);
+                residency[i] = stats.residency;
+                if (profileIds[i] == mAppliedProfile) {
+                    residency[i] += nowMillis - mAppliedProfileSince;
+                }
+                switches[i] = stats.switches;
+                latencyTotal[i] = stats.latencyTotal;
+                latencyMax[i] = stats.latencyMax;
+            }
+        }
+
+        final int[] uids;
+        final int[] requests;
+        final int[] hints;
+        synchronized (mBoostLock) {
+            final int count = mBoostRequestsByUid.size();
+            uids = new int[count];
+            requests = new int[count];
+            hints = new int[count];
+            for (int i = 0; i < count; i++) {
+                uids[i] = mBoostRequestsByUid.keyAt(i);
+                requests[i] = mBoostRequestsByUid.valueAt(i);
+                hints[i] = mBoostHintsByUid.get(uids[i]);
+            }
+        }
+
+        return new PerformanceStats(profileIds, residency, switches, latencyTotal, latencyMax,
+                uids, requests, hints);
+    }
+
     private void applyAppProfileLocked() {
         if (!hasProfiles()) {
             // don't have profiles, bail.
@@ -369,7 +579,7 @@ public class PerformanceManagerService extends MKSystemService {
             // LPM always wins
             profile = PROFILE_POWER_SAVE;
         } else if (hasAppProfiles()) {
-            profile = getProfileForActivity(mCurrentActivityName);
+            profile = mCurrentAppProfile < 0 ? mUserProfile : mCurrentAppProfile;
         } else {
             profile = mUserProfile;
         }
@@ -430,6 +640,13 @@ public class PerformanceManagerService extends MKSystemService {
             }
         }
 
+        @Override
+        public PerformanceStats getPerformanceStats() {
+            mContext.enforceCallingOrSelfPermission(
+                    mokee.platform.Manifest.permission.PERFORMANCE_ACCESS, null);
+            return getPerformanceStatsInternal();
+        }
+
         @Override
         public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
             mContext.enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
@@ -439,6 +656,10 @@ public class PerformanceManagerService extends MKSystemService {
                 pw.println("PerformanceManager Service State:");
                 pw.println();
                 pw.println(" Boost enabled: " + mBoostEnabled);
+                synchronized (mBoostLock) {
+                    pw.println(" Boost requests: " + mBoostRequests + " hints: " + mBoostHints +
+                            " merged: " + mBoostMerged + " throttled: " + mBoostThrottled);
+                }
 
                 if (!hasProfiles()) {
                     pw.println(" No profiles available.");
@@ -456,9 +677,11 @@ public class PerformanceManagerService extends MKSystemService {
                     }
                     if (hasAppProfiles()) {
                         pw.println();
-                        pw.println(" App trigger count: " + mAppProfiles.size());
+                        mAppProfiles.dump(pw);
                     }
                     pw.println();
+                    dumpStats(pw);
+                    pw.println();
                     mBoostLog.dump(pw);
                 }
             }
@@ -474,63 +697,124 @@ public class PerformanceManagerService extends MKSystemService {
 
         @Override
         public void activityResumed(Intent intent) {
-            String activityName = null;
-            if (intent != null) {
-                final ComponentName cn = intent.getComponent();
-                if (cn != null) {
-                    activityName = cn.flattenToString();
-                }
-            }
+            // Rules are fixed, so match outside the lock
+            final int appProfile = getProfileForActivity(
+                    intent != null ? intent.getComponent() : null);
 
             synchronized (mLock) {
-                mCurrentActivityName = activityName;
+                mCurrentAppProfile = appProfile;
                 applyAppProfileLocked();
             }
         }
     }
 
+    private void dumpStats(PrintWriter pw) {
+        final PerformanceStats stats = getPerformanceStatsInternal();
+
+        pw.println(" Profile stats:");
+        for (int profile : stats.getProfileIds()) {
+            pw.println(String.format(Locale.US,
+                    "  %d: residency=%dms switches=%d latency avg=%dus max=%dus",
+                    profile, stats.getResidencyMillis(profile), stats.getSwitchCount(profile),
+                    stats.getAverageSwitchLatencyMicros(profile),
+                    stats.getMaxSwitchLatencyMicros(profile)));
+        }
+        pw.println();
+        pw.println(" Boosts by uid:");
+        for (int uid : stats.getBoostUids()) {
+            pw.println("  " + uid + ": requests=" + stats.getBoostRequestCount(uid) +
+                    " hints=" + stats.getBoostHintCount(uid));
+        }
+    }
+
+    private static final class ProfileStats {
+        // milliseconds
+        long residency;
+        int switches;
+        // microseconds
+        long latencyTotal;
+        long latencyMax;
+    }
+
+    /**
+     * Ring of primitive boost events. Recording takes no lock and allocates
+     * nothing; entries are only formatted when dumped.
+     * <p>
+     * There is a single writer, the BoostHandler thread. Each slot carries the
+     * sequence number of its entry and is cleared while being rewritten. All
+     * fields are volatile array elements, so their accesses can't be reordered
+     * around the sequence, and dump only prints entries whose sequence matched
+     * both before and after reading them.
+     */
     private static class BoostLog {
         static final int APP_PROFILE  = 0;
         static final int CPU_BOOST    = 1;
         static final int USER_PROFILE = 2;
+        static final int CPU_BOOST_EXTEND = 3;
 
         static final String[] EVENTS = new String[] {
-                "APP_PROFILE", "CPU_BOOST", "USER_PROFILE" };
+                "APP_PROFILE", "CPU_BOOST", "USER_PROFILE", "CPU_BOOST_EXTEND" };
 
-        private static final int LOG_BUF_SIZE = 25;
+        // Must be a power of two
+        private static final int LOG_BUF_SIZE = 512;
 
-        static class Entry {
-            private final long timestamp;
-            private final int event;
-            private final String info;
+        // Sequence number of the next entry, only written by the writer
+        private volatile long mNext;
+        // 1 + sequence number of the entry in each slot, 0 if never written or being written
+        private final AtomicLongArray mSequence = new AtomicLongArray(LOG_BUF_SIZE);
+        private final AtomicLongArray mTimestamp = new AtomicLongArray(LOG_BUF_SIZE);
+        private final AtomicIntegerArray mEvent = new AtomicIntegerArray(LOG_BUF_SIZE);
+        private final AtomicIntegerArray mValue = new AtomicIntegerArray(LOG_BUF_SIZE);
+        private final AtomicIntegerArray mUid = new AtomicIntegerArray(LOG_BUF_SIZE);
 
-            Entry(long timestamp_, int event_, String info_) {
-                timestamp = timestamp_;
-                event = event_;
-                info = info_;
-            }
+        /**
+         * Record an event. Must only be called on the BoostHandler thread.
+         *
+         * @param event one of the event types
+         * @param value profile or boost duration, depending on the event
+         * @param uid   uid the event is attributed to, or -1
+         */
+        void log(int event, int value, int uid) {
+            final long seq = mNext;
+            final int slot = (int) (seq & (LOG_BUF_SIZE - 1));
+            mSequence.set(slot, 0);
+            mTimestamp.set(slot, System.currentTimeMillis());
+            mEvent.set(slot, event);
+            mValue.set(slot, value);
+            mUid.set(slot, uid);
+            mSequence.set(slot, seq + 1);
+            mNext = seq + 1;
         }
 
-        private final ArrayDeque<Entry> mBuffer = new ArrayDeque<>(LOG_BUF_SIZE);
-
-        void log(int event, String info) {
-            synchronized (mBuffer) {
-                mBuffer.add(new Entry(System.currentTimeMillis(), event, info));
-                if (mBuffer.size() >= LOG_BUF_SIZE) {
-                    mBuffer.poll();
+        void dump(PrintWriter pw) {
+            pw.println(" Boost log:");
+            final Date date = new Date();
+            final long next = mNext;
+            for (long seq = Math.max(next - LOG_BUF_SIZE, 0); seq < next; seq++) {
+                final int slot = (int) (seq & (LOG_BUF_SIZE - 1));
+                if (mSequence.get(slot) != seq + 1) {
+                    continue;
+                }
+                final long timestamp = mTimestamp.get(slot);
+                final int event = mEvent.get(slot);
+                final int value = mValue.get(slot);
+                final int uid = mUid.get(slot);
+                if (mSequence.get(slot) != seq + 1) {
+                    // overwritten while reading
+                    continue;
                 }
-            }
-        }
 
-        void dump(PrintWriter pw) {
-            synchronized (mBuffer) {
-                pw.println(" Boost log:");
-                for (Entry entry : mBuffer) {
-                    pw.println(String.format("  %1$tH:%1$tM:%1$tS.%1$tL: %2$14s  %3$s",
-                            new Date(entry.timestamp), EVENTS[entry.event], entry.info));
+                date.setTime(timestamp);
+                final String info;
+                if (event == APP_PROFILE || event == USER_PROFILE) {
+                    info = "profile=" + value;
+                } else {
+                    info = "duration=" + value;
                 }
-                pw.println();
+                pw.println(String.format("  %1$tH:%1$tM:%1$tS.%1$tL: %2$16s  %3$s%4$s",
+                        date, EVENTS[event], info, uid >= 0 ? " uid=" + uid : ""));
             }
+            pw.println();
         }
     }
 
@@ -548,12 +832,20 @@ public class PerformanceManagerService extends MKSystemService {
             switch (msg.what) {
                 case MSG_CPU_BOOST:
                     mPm.powerHint(POWER_HINT_CPU_BOOST, msg.arg1);
-                    mBoostLog.log(BoostLog.CPU_BOOST, "duration=" + msg.arg1);
+                    mBoostLog.log(BoostLog.CPU_BOOST, msg.arg1, msg.arg2);
+                    break;
+                case MSG_EXTEND_BOOST:
+                    final int duration = extendBoost();
+                    if (duration > 0) {
+                        mPm.powerHint(POWER_HINT_CPU_BOOST, duration);
+                        mBoostLog.log(BoostLog.CPU_BOOST_EXTEND, duration, -1);
+                    }
                     break;
                 case MSG_SET_PROFILE:
                     mPm.powerHint(POWER_HINT_SET_PROFILE, msg.arg1);
+                    noteProfileApplied(msg.arg1, (Long) msg.obj);
                     mBoostLog.log((msg.arg2 == 1 ? BoostLog.USER_PROFILE : BoostLog.APP_PROFILE),
-                            "profile=" + msg.arg1);
+                            msg.arg1, -1);
                     break;
             }
         }
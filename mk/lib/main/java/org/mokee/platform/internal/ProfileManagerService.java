@@ -26,7 +26,9 @@ import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiSsid;
 import android.os.Message;
+import android.os.Process;
 import android.util.ArraySet;
+import android.util.AtomicFile;
 import com.android.internal.policy.IKeyguardService;
 import mokee.providers.MKSettings;
 import org.xmlpull.v1.XmlPullParser;
@@ -49,6 +51,7 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.os.ParcelUuid;
 
+import com.android.server.ServiceThread;
 import com.android.server.SystemService;
 
 import mokee.app.MKContextConstants;
@@ -59,9 +62,11 @@ import mokee.app.IProfileManager;
 
 import java.util.Collection;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -83,6 +88,12 @@ public class ProfileManagerService extends MKSystemService {
             new File(Environment.getDataSystemDirectory(), "profiles.xml");
 
     private static final int MSG_SEND_PROFILE_STATE = 10;
+    private static final int MSG_PERSIST = 11;
+
+    // Edits within this time (milliseconds) are written out together
+    private static final long PERSIST_DELAY = 500;
+    // Time (milliseconds) to wait before retrying a failed write
+    private static final long PERSIST_RETRY_DELAY = 5000;
 
     private Map<UUID, Profile> mProfiles;
 
@@ -102,6 +113,14 @@ public class ProfileManagerService extends MKSystemService {
     private Handler mHandler;
     private boolean mDirty;
     private BackupManager mBackupManager;
+    // The previous file is kept as a backup until a write completes, so a crash
+    // mid-write can't corrupt it. Take lock when writing, so snapshots hit the
+    // disk in the order they were taken.
+    private final AtomicFile mProfileFile = new AtomicFile(PROFILE_FILE);
+    private final ServiceThread mPersistThread;
+    private final Handler mPersistHandler;
+    // Latest snapshot not written out yet, guarded by this
+    private byte[] mPendingXml;
     private ProfileTriggerHelper mTriggerHelper;
     private Profile mEmptyProfile;
 
@@ -134,10 +153,11 @@ public class ProfileManagerService extends MKSystemService {
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_LOCALE_CHANGED)) {
-                persistIfDirty();
+                // initialize() reads the file back, so it must be current
+                persistNow();
                 initialize();
             } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
-                persistIfDirty();
+                persistNow();
             }
         }
     };
@@ -233,6 +253,22 @@ public class ProfileManagerService extends MKSystemService {
         super(context);
         mContext = context;
         mHandler = new Handler(mHandlerCallback);
+
+        // Disk writes are kept off the callers' threads
+        mPersistThread = new ServiceThread(TAG,
+                Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+        mPersistThread.start();
+        mPersistHandler = new Handler(mPersistThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what == MSG_PERSIST) {
+                    writePendingXml();
+                    return true;
+                }
+                return false;
+            }
+        });
+
         if (context.getPackageManager().hasSystemFeature(
                 MKContextConstants.Features.PROFILES)) {
             publishBinderService(MKContextConstants.MK_PROFILE_SERVICE, mService);
@@ -627,35 +663,90 @@ public class ProfileManagerService extends MKSystemService {
         return builder.toString();
     }
 
-    private synchronized void persistIfDirty() {
-        boolean dirty = mDirty;
-        if (!dirty) {
-            for (Profile profile : mProfiles.values()) {
-                if (profile.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+    /**
+     * Take a snapshot of the profiles if anything changed and schedule it to
+     * be written out. Serializing happens on the calling thread right after
+     * its edit, only the disk write is deferred; snapshots taken until the
+     * write happens replace each other.
+     */
+    private void persistIfDirty() {
+        synchronized (this) {
+            if (!isDirtyLocked()) {
+                return;
+            }
+            try {
+                // also marks the profiles and groups clean
+                mPendingXml = getXmlString().getBytes(StandardCharsets.UTF_8);
+                mDirty = false;
+            } catch (Throwable e) {
+                Log.e(TAG, "Failed to serialize profile data", e);
+                return;
             }
         }
-        if (!dirty) {
-            for (NotificationGroup group : mGroups.values()) {
-                if (group.isDirty()) {
-                    dirty = true;
-                    break;
-                }
+        if (!mPersistHandler.hasMessages(MSG_PERSIST)) {
+            mPersistHandler.sendEmptyMessageDelayed(MSG_PERSIST, PERSIST_DELAY);
+        }
+    }
+
+    private boolean isDirtyLocked() {
+        if (mDirty) {
+            return true;
+        }
+        for (Profile profile : mProfiles.values()) {
+            if (profile.isDirty()) {
+                return true;
+            }
+        }
+        for (NotificationGroup group : mGroups.values()) {
+            if (group.isDirty()) {
+                return true;
             }
         }
-        if (dirty) {
+        return false;
+    }
+
+    /**
+     * Take a snapshot if anything changed and write it out on the calling thread.
+     */
+    private void persistNow() {
+        persistIfDirty();
+        writePendingXml();
+    }
+
+    /**
+     * Write the latest snapshot, if there is one, to disk. A failed write
+     * is retried unless a newer snapshot replaced it meanwhile.
+     */
+    private void writePendingXml() {
+        mPersistHandler.removeMessages(MSG_PERSIST);
+
+        synchronized (mProfileFile) {
+            final byte[] xml;
+            synchronized (this) {
+                xml = mPendingXml;
+                mPendingXml = null;
+            }
+            if (xml == null) {
+                return;
+            }
+
+            FileOutputStream out = null;
             try {
                 Log.d(TAG, "Saving profile data...");
-                FileWriter fw = new FileWriter(PROFILE_FILE);
-                fw.write(getXmlString());
-                fw.close();
+                out = mProfileFile.startWrite();
+                out.write(xml);
+                mProfileFile.finishWrite(out);
                 Log.d(TAG, "Save completed.");
-                mDirty = false;
                 mBackupManager.dataChanged();
-            } catch (Throwable e) {
-                e.printStackTrace();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to save profile data", e);
+                mProfileFile.failWrite(out);
+                synchronized (this) {
+                    if (mPendingXml == null) {
+                        mPendingXml = xml;
+                    }
+                }
+                mPersistHandler.sendEmptyMessageDelayed(MSG_PERSIST, PERSIST_RETRY_DELAY);
             }
         }
     }
@@ -668,20 +759,32 @@ public class ProfileManagerService extends MKSystemService {
 
     // Called by SystemBackupAgent after files are restored to disk.
     void settingsRestored() {
-        initialize();
-        for (Profile p : mProfiles.values()) {
-            p.validateRingtones(mContext);
+        // Hold the file so a write already under way can't overwrite the restored
+        // file; anything pending predates it.
+        synchronized (mProfileFile) {
+            mPersistHandler.removeMessages(MSG_PERSIST);
+            synchronized (this) {
+                mPendingXml = null;
+            }
+            initialize();
+            for (Profile p : mProfiles.values()) {
+                p.validateRingtones(mContext);
+            }
+            persistIfDirty();
         }
-        persistIfDirty();
     }
 
     private void loadFromFile() throws XmlPullParserException, IOException {
         XmlPullParserFactory xppf = XmlPullParserFactory.newInstance();
         XmlPullParser xpp = xppf.newPullParser();
-        FileReader fr = new FileReader(PROFILE_FILE);
-        xpp.setInput(fr);
-        loadXml(xpp, mContext);
-        fr.close();
+        // falls back to the previous file if the last write didn't complete
+        Reader reader = new InputStreamReader(mProfileFile.openRead(), StandardCharsets.UTF_8);
+        try {
+            xpp.setInput(reader);
+            loadXml(xpp, mContext);
+        } finally {
+            reader.close();
+        }
         persistIfDirty();
     }
 
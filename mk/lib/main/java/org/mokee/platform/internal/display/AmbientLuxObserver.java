@@ -24,11 +24,10 @@ import android.hardware.SensorManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 public class AmbientLuxObserver {
 
@@ -47,6 +46,8 @@ public class AmbientLuxObserver {
 
     private float mAmbientLux = 0.0f;
 
+    private static final int MIN_RING_BUFFER_CAPACITY = 16;
+
     private static final int LOW = 0;
     private static final int HIGH = 1;
 
@@ -68,17 +69,21 @@ public class AmbientLuxObserver {
         mThresholdLux = thresholdLux;
         mHysteresisLux = hysteresisLux;
         mThresholdDuration = thresholdDuration;
-        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration);
 
         mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
         mLightSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
         mLightSensorRate = context.getResources().getInteger(
                 com.android.internal.R.integer.config_autoBrightnessLightSensorRate);
+
+        // Room for a full window of samples at the sensor rate, with some slack
+        // for sensors which report faster than requested
+        final int capacity = Math.max(MIN_RING_BUFFER_CAPACITY,
+                2 * thresholdDuration / Math.max(mLightSensorRate, 1) + 1);
+        mRingBuffer = new TimedMovingAverageRingBuffer(thresholdDuration, capacity);
     }
 
     private class AmbientLuxHandler extends Handler {
 
-        private static final int MSG_UPDATE_LUX = 0;
         private static final int MSG_TRANSITION = 1;
 
         AmbientLuxHandler(Looper looper) {
@@ -87,42 +92,45 @@ public class AmbientLuxObserver {
 
         @Override
         public void handleMessage(Message msg) {
-            int direction = 0;
-            float lux = 0.0f;
+            switch (msg.what) {
+                case MSG_TRANSITION:
+                    update(0.0f, false);
+                    break;
+            }
+        }
 
+        /**
+         * Recomputes the ambient lux, optionally adding a new sample first. Must be
+         * called on the handler's thread, which is also where sensor events arrive.
+         */
+        void update(float lux, boolean hasSample) {
             synchronized (AmbientLuxObserver.this) {
-                switch (msg.what) {
-                    case MSG_UPDATE_LUX:
-                        lux = (Float) msg.obj;
-                        mRingBuffer.add(lux);
-
-                        // FALL THRU
-
-                    case MSG_TRANSITION:
-                        mAmbientLux = mRingBuffer.getAverage();
-
-                        if (DEBUG) {
-                            Log.d(TAG, "lux= " + lux + " mState=" + mState +
-                                       " mAmbientLux=" + mAmbientLux);
-                        }
-
-                        final float threshold = mState == HIGH
-                                ? mThresholdLux - mHysteresisLux : mThresholdLux;
-                        direction = mAmbientLux >= threshold ? HIGH : LOW;
-                        if (mState != direction) {
-                            mState = direction;
-                            if (mCallback != null) {
-                                mCallback.onTransition(mState, mAmbientLux);
-                            }
-                        }
-
-                        // check again in case we didn't get any
-                        // more readings because the sensor settled
-                        if (mRingBuffer.size() > 1) {
-                            removeMessages(MSG_TRANSITION);
-                            sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
-                        }
-                        break;
+                final long now = SystemClock.uptimeMillis();
+                if (hasSample) {
+                    mRingBuffer.add(now, lux);
+                }
+                mAmbientLux = mRingBuffer.getAverage(now);
+
+                if (DEBUG) {
+                    Log.d(TAG, "lux= " + lux + " mState=" + mState +
+                               " mAmbientLux=" + mAmbientLux);
+                }
+
+                final float threshold = mState == HIGH
+                        ? mThresholdLux - mHysteresisLux : mThresholdLux;
+                final int direction = mAmbientLux >= threshold ? HIGH : LOW;
+                if (mState != direction) {
+                    mState = direction;
+                    if (mCallback != null) {
+                        mCallback.onTransition(mState, mAmbientLux);
+                    }
+                }
+
+                // check again in case we didn't get any
+                // more readings because the sensor settled
+                if (mRingBuffer.size() > 1) {
+                    removeMessages(MSG_TRANSITION);
+                    sendEmptyMessageDelayed(MSG_TRANSITION, mThresholdDuration / 2);
                 }
             }
         }
@@ -135,9 +143,10 @@ public class AmbientLuxObserver {
     private final SensorEventListener mListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
+            // Delivered on mLuxHandler's thread, so handle it in place
+            // rather than posting a message with a boxed value
             if (mLightSensorEnabled) {
-                Message.obtain(mLuxHandler, AmbientLuxHandler.MSG_UPDATE_LUX,
-                               event.values[0]).sendToTarget();
+                mLuxHandler.update(event.values[0], true);
             }
         }
 
@@ -181,79 +190,121 @@ public class AmbientLuxObserver {
     }
 
     /**
-     * Calculates a simple moving average based on a fixed
+     * Calculates a time-weighted moving average based on a fixed
      * duration sliding window. This is useful for dampening
      * erratic sensors and rolling thru transitional periods
      * smoothly.
+     *
+     * Each sample is weighted by how long it was the current reading,
+     * and the weighted sum is maintained incrementally. Samples live in
+     * preallocated primitive arrays, so adding one allocates nothing.
+     * Samples are only added from a single thread, so no locking is done;
+     * timestamps come from the monotonic uptime clock.
      */
     private static class TimedMovingAverageRingBuffer {
 
-        private final LinkedList<Sample> mRing = new LinkedList<Sample>();
-
         private final int mPeriod;
 
-        private float mTotal = 0.0f;
+        private final long[] mTimestamps;
+        private final float[] mValues;
+        private int mHead = 0;
+        private int mSize = 0;
 
-        private static class Sample {
-            public final long mTimestamp;
-            public final float mValue;
-            public Sample (long timestamp, float value) {
-                mTimestamp = timestamp;
-                mValue = value;
-            }
+        // Sum of value * duration over every sample but the newest,
+        // whose duration is still open
+        private double mWeightedTotal = 0.0;
 
-            @Override
-            public String toString() {
-                return "(" + mValue + ", " + mTimestamp + ")";
+        public TimedMovingAverageRingBuffer(int period, int capacity) {
+            mPeriod = period;
+            mTimestamps = new long[capacity];
+            mValues = new float[capacity];
+        }
+
+        public void add(long now, float sample) {
+            expire(now);
+            if (sample == 0.0f && mSize == 0) {
+                return;
+            }
+            if (mSize == mValues.length) {
+                // Full; drop the oldest sample to make room
+                removeOldest();
+            }
+            if (mSize > 0) {
+                final int newest = index(mSize - 1);
+                mWeightedTotal += (double) mValues[newest] * (now - mTimestamps[newest]);
             }
+            final int i = index(mSize);
+            mTimestamps[i] = now;
+            mValues[i] = sample;
+            mSize++;
         }
 
-        public TimedMovingAverageRingBuffer(int period) {
-            mPeriod = period;
+        public int size() {
+            return mSize;
         }
 
-        public synchronized void add(float sample) {
-            expire();
-            if (sample == 0.0f && mRing.size() == 0) {
-                return;
+        public float getAverage(long now) {
+            expire(now);
+            if (mSize == 0) {
+                return 0.0f;
+            }
+
+            final int newest = index(mSize - 1);
+            final long windowStart = Math.max(mTimestamps[mHead], now - mPeriod);
+            final long duration = now - windowStart;
+            if (duration <= 0) {
+                return mValues[newest];
             }
-            mRing.offer(new Sample(System.currentTimeMillis(), sample));
-            mTotal += sample;
+
+            // The oldest sample may have become current before the window started
+            final double clipped = (double) mValues[mHead] * (windowStart - mTimestamps[mHead]);
+            final double total = mWeightedTotal - clipped
+                    + (double) mValues[newest] * (now - mTimestamps[newest]);
+            return (float) (total / duration);
         }
 
-        public synchronized int size() {
-            return mRing.size();
+        public void clear() {
+            mHead = 0;
+            mSize = 0;
+            mWeightedTotal = 0.0;
         }
 
-        public synchronized float getAverage() {
-            expire();
-            return mRing.size() == 0 ? 0.0f : (mTotal / mRing.size());
+        private int index(int offset) {
+            return (mHead + offset) % mValues.length;
         }
 
-        public synchronized void clear() {
-            mRing.clear();
-            mTotal = 0.0f;
+        private void removeOldest() {
+            if (mSize > 1) {
+                mWeightedTotal -= (double) mValues[mHead]
+                        * (mTimestamps[index(1)] - mTimestamps[mHead]);
+            } else {
+                mWeightedTotal = 0.0;
+            }
+            mHead = index(1);
+            mSize--;
         }
 
-        private void expire() {
-            long now = System.currentTimeMillis();
-            while (mRing.size() > 1 &&
-                    ((now - mRing.peek().mTimestamp) > mPeriod)) {
-                mTotal -= mRing.pop().mValue;
+        private void expire(long now) {
+            // A sample stops counting once its successor became
+            // current before the window started
+            while (mSize > 1 && (now - mTimestamps[index(1)]) > mPeriod) {
+                removeOldest();
             }
         }
 
+        // Only reads, since dump() may call this from another thread
         @Override
-        public synchronized String toString() {
-            expire();
+        public String toString() {
             StringBuilder sb = new StringBuilder();
-            for (Iterator<Sample> i = mRing.iterator(); i.hasNext();) {
+            for (int i = 0; i < mSize; i++) {
                 if (sb.length() > 0) {
                     sb.append(", ");
                 }
-                sb.append(i.next());
+                final int j = index(i);
+                sb.append("(").append(mValues[j]).append(", ")
+                        .append(mTimestamps[j]).append(")");
             }
-            return "average=" + getAverage() + " length=" + mRing.size() +
+            return "weightedTotal=" + mWeightedTotal + " length=" + mSize +
                    " mRing=[" + sb.toString() + "]";
         }
     }
@@ -16,8 +16,6 @@
  */
 package org.mokee.platform.internal.display;
 
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
@@ -25,7 +23,6 @@ import android.text.format.DateUtils;
 import android.util.MathUtils;
 import android.util.Range;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
 
 import org.mokee.platform.internal.display.TwilightTracker.TwilightState;
 
@@ -35,7 +32,6 @@ import java.util.BitSet;
 import mokee.hardware.MKHardwareManager;
 import mokee.hardware.LiveDisplayManager;
 import mokee.providers.MKSettings;
-import mokee.util.ColorUtils;
 
 import static mokee.hardware.LiveDisplayManager.MODE_AUTO;
 import static mokee.hardware.LiveDisplayManager.MODE_DAY;
@@ -45,12 +41,16 @@ import static mokee.hardware.LiveDisplayManager.MODE_OFF;
 public class ColorTemperatureController extends LiveDisplayFeature {
 
     private final DisplayHardwareController mDisplayHardware;
+    private final LiveDisplayCompositor mCompositor;
 
     private final boolean mUseTemperatureAdjustment;
     private final boolean mUseColorBalance;
     private final Range<Integer> mColorBalanceRange;
     private final Range<Integer> mColorTemperatureRange;
-    private final double[] mColorBalanceCurve;
+    private final ColorTemperatureTable mTemperatureTable;
+
+    // scratch buffer for the RGB gains
+    private final float[] mRGB = new float[3];
 
     private final int mDefaultDayTemperature;
     private final int mDefaultNightTemperature;
@@ -59,21 +59,23 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     private int mDayTemperature;
     private int mNightTemperature;
 
-    private ValueAnimator mAnimator;
-
     private final MKHardwareManager mHardware;
 
     private static final long TWILIGHT_ADJUSTMENT_TIME = DateUtils.HOUR_IN_MILLIS * 1;
 
+    private static final long MIN_TWILIGHT_UPDATE_INTERVAL = DateUtils.MINUTE_IN_MILLIS;
+
     private static final Uri DISPLAY_TEMPERATURE_DAY =
             MKSettings.System.getUriFor(MKSettings.System.DISPLAY_TEMPERATURE_DAY);
     private static final Uri DISPLAY_TEMPERATURE_NIGHT =
             MKSettings.System.getUriFor(MKSettings.System.DISPLAY_TEMPERATURE_NIGHT);
 
     public ColorTemperatureController(Context context,
-            Handler handler, DisplayHardwareController displayHardware) {
+            Handler handler, DisplayHardwareController displayHardware,
+            LiveDisplayCompositor compositor) {
         super(context, handler);
         mDisplayHardware = displayHardware;
+        mCompositor = compositor;
         mHardware = MKHardwareManager.getInstance(mContext);
 
         mUseColorBalance = mHardware
@@ -94,10 +96,9 @@ public class ColorTemperatureController extends LiveDisplayFeature {
                 mContext.getResources().getInteger(
                         org.mokee.platform.internal.R.integer.config_maxColorTemperature));
 
-        mColorBalanceCurve = org.mokee.internal.util.MathUtils.powerCurve(
-                mColorTemperatureRange.getLower(),
-                mDefaultDayTemperature,
-                mColorTemperatureRange.getUpper());
+        mTemperatureTable = mUseTemperatureAdjustment ? new ColorTemperatureTable(
+                mColorTemperatureRange, mDefaultDayTemperature,
+                mUseColorBalance ? mColorBalanceRange : null) : null;
     }
 
     @Override
@@ -132,11 +133,8 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
     @Override
     protected void onScreenStateChanged() {
-        if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-            mAnimator.cancel();
-        } else {
-            updateColorTemperature();
-        }
+        // a running transition is dropped by the compositor when the screen goes off
+        updateColorTemperature();
     }
 
     @Override
@@ -181,18 +179,22 @@ public class ColorTemperatureController extends LiveDisplayFeature {
     }
 
     private synchronized void updateColorTemperature() {
+        mHandler.removeCallbacks(mTransitionRunnable);
         if (!mUseTemperatureAdjustment || !isScreenOn()) {
             return;
         }
+        final long now = System.currentTimeMillis();
         int temperature = mDayTemperature;
         int mode = getMode();
+        boolean auto = false;
 
         if (mode == MODE_OFF || isLowPowerMode()) {
             temperature = mDefaultDayTemperature;
         } else if (mode == MODE_NIGHT) {
             temperature = mNightTemperature;
         } else if (mode == MODE_AUTO) {
-            temperature = getTwilightK();
+            temperature = getTwilightK(now);
+            auto = true;
         }
 
         if (DEBUG) {
@@ -202,62 +204,13 @@ public class ColorTemperatureController extends LiveDisplayFeature {
 
         setDisplayTemperature(temperature);
 
-        if (isTransitioning()) {
-            // fire again in a minute
-            mHandler.postDelayed(mTransitionRunnable, DateUtils.MINUTE_IN_MILLIS);
-        }
-    }
-
-    /**
-     * Smoothly animate the current display color balance
-     */
-    private synchronized void animateColorBalance(int balance) {
-
-        // always start with the current values in the hardware
-        int current = mHardware.getColorBalance();
-
-        if (current == balance) {
-            return;
-        }
-
-        long duration = (long)(5 * Math.abs(current - balance));
-
-
-        if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + current +
-                    " target=" + balance + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofInt(current, balance);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (ColorTemperatureController.this) {
-                    if (isScreenOn()) {
-                        int value = (int) animation.getAnimatedValue();
-                        mHardware.setColorBalance(value);
-                    }
-                }
+        if (auto) {
+            // fire again once the output changes
+            final long next = getNextTwilightUpdate(now);
+            if (next > 0) {
+                mHandler.postDelayed(mTransitionRunnable, next - now);
             }
-        });
-        mAnimator.start();
-    }
-
-    /*
-     * Map the color temperature to a color balance value using a power curve. This assumes the
-     * correct configuration at the device level!
-     */
-    private int mapColorTemperatureToBalance(int temperature) {
-        double z = org.mokee.internal.util.MathUtils.powerCurveToLinear(mColorBalanceCurve, temperature);
-        return Math.round(MathUtils.lerp((float)mColorBalanceRange.getLower(),
-                (float)mColorBalanceRange.getUpper(), (float)z));
+        }
     }
 
     private synchronized void setDisplayTemperature(int temperature) {
@@ -269,13 +222,13 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         mColorTemperature = temperature;
 
         if (mUseColorBalance) {
-            int balance = mapColorTemperatureToBalance(temperature);
+            int balance = mTemperatureTable.getColorBalance(temperature);
             Slog.d(TAG, "Set color balance = " + balance + " (temperature=" + temperature + ")");
-            animateColorBalance(balance);
+            mCompositor.setColorBalance(balance);
             return;
         }
 
-        final float[] rgb = ColorUtils.temperatureToRGB(temperature);
+        final float[] rgb = mTemperatureTable.getRGB(temperature, mRGB);
         if (mDisplayHardware.setAdditionalAdjustment(rgb)) {
             if (DEBUG) {
                 Slog.d(TAG, "Adjust display temperature to " + temperature + "K");
@@ -317,12 +270,11 @@ public class ColorTemperatureController extends LiveDisplayFeature {
      *
      * @return color temperature in Kelvin
      */
-    private int getTwilightK() {
+    private int getTwilightK(long now) {
         float adjustment = 1.0f;
         final TwilightState twilight = getTwilight();
 
         if (twilight != null) {
-            final long now = System.currentTimeMillis();
             adjustment = adj(now, twilight.getYesterdaySunset(), twilight.getTodaySunrise()) *
                     adj(now, twilight.getTodaySunset(), twilight.getTomorrowSunrise());
         }
@@ -330,6 +282,70 @@ public class ColorTemperatureController extends LiveDisplayFeature {
         return (int)MathUtils.lerp(mNightTemperature, mDayTemperature, adjustment);
     }
 
+    /**
+     * Find the next time the output of auto mode changes. The twilight curve is
+     * linear between sunrises, sunsets and the ends of their transitions, so the
+     * change within one such piece can be found by bisection without waking up.
+     *
+     * @param now
+     * @return time of the next change, or -1 if only a new twilight state can change it
+     */
+    private long getNextTwilightUpdate(long now) {
+        final TwilightState twilight = getTwilight();
+        if (twilight == null) {
+            return -1;
+        }
+
+        long end = nextTwilightEdge(now, Long.MAX_VALUE, twilight.getYesterdaySunset());
+        end = nextTwilightEdge(now, end, twilight.getTodaySunrise());
+        end = nextTwilightEdge(now, end, twilight.getTodaySunset());
+        end = nextTwilightEdge(now, end, twilight.getTomorrowSunrise());
+        if (end == Long.MAX_VALUE) {
+            return -1;
+        }
+
+        final int current = quantizeTemperature(getTwilightK(now));
+        if (quantizeTemperature(getTwilightK(end)) == current) {
+            // flat until the next edge
+            return end;
+        }
+
+        long lo = now;
+        long hi = end;
+        while (hi - lo > DateUtils.SECOND_IN_MILLIS) {
+            final long mid = lo + (hi - lo) / 2;
+            if (quantizeTemperature(getTwilightK(mid)) == current) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+
+        // don't step more often than the transition animation can follow
+        return Math.max(hi, now + MIN_TWILIGHT_UPDATE_INTERVAL);
+    }
+
+    private static long nextTwilightEdge(long now, long end, long twilight) {
+        if (twilight < 0) {
+            return end;
+        }
+        if (twilight > now && twilight < end) {
+            end = twilight;
+        }
+        final long adjusted = twilight + TWILIGHT_ADJUSTMENT_TIME;
+        if (adjusted > now && adjusted < end) {
+            end = adjusted;
+        }
+        return end;
+    }
+
+    /**
+     * The value which ends up in the hardware for a temperature
+     */
+    private int quantizeTemperature(int temperature) {
+        return mUseColorBalance ? mTemperatureTable.getColorBalance(temperature) : temperature;
+    }
+
     int getDefaultDayTemperature() {
         return mDefaultDayTemperature;
     }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mokee.platform.internal.display;
+
+import android.util.MathUtils;
+import android.util.Range;
+
+import mokee.util.ColorUtils;
+
+/**
+ * Precomputed mapping from a color temperature in Kelvin to what the
+ * hardware is given for it, for every Kelvin in the supported range.
+ *
+ * Only the table for the method the device uses is built: color balance
+ * values if it has color balance, RGB gains for the display calibration
+ * otherwise. Lookups clamp to the range and never allocate.
+ */
+final class ColorTemperatureTable {
+
+    private final int mMinTemperature;
+    private final int mMaxTemperature;
+
+    private final int[] mBalance;
+    private final float[] mRGB;
+
+    /**
+     * @param temperatureRange supported color temperatures
+     * @param midTemperature temperature at the middle of the balance range
+     * @param balanceRange color balance range, or null to build RGB gains instead
+     */
+    ColorTemperatureTable(Range<Integer> temperatureRange, int midTemperature,
+            Range<Integer> balanceRange) {
+        mMinTemperature = temperatureRange.getLower();
+        mMaxTemperature = Math.max(temperatureRange.getUpper(), mMinTemperature);
+
+        final int size = mMaxTemperature - mMinTemperature + 1;
+
+        if (balanceRange != null) {
+            // Map the color temperature to a color balance value using a power curve.
+            // This assumes the correct configuration at the device level!
+            final double[] curve = org.mokee.internal.util.MathUtils.powerCurve(
+                    mMinTemperature, midTemperature, mMaxTemperature);
+            mBalance = new int[size];
+            mRGB = null;
+            for (int i = 0; i < size; i++) {
+                double z = org.mokee.internal.util.MathUtils.powerCurveToLinear(
+                        curve, mMinTemperature + i);
+                mBalance[i] = Math.round(MathUtils.lerp((float) balanceRange.getLower(),
+                        (float) balanceRange.getUpper(), (float) z));
+            }
+        } else {
+            mBalance = null;
+            mRGB = new float[size * 3];
+            for (int i = 0; i < size; i++) {
+                final float[] rgb = ColorUtils.temperatureToRGB(mMinTemperature + i);
+                System.arraycopy(rgb, 0, mRGB, i * 3, 3);
+            }
+        }
+    }
+
+    private int indexOf(int temperature) {
+        return MathUtils.constrain(temperature, mMinTemperature, mMaxTemperature)
+                - mMinTemperature;
+    }
+
+    /**
+     * @return the color balance value for the temperature
+     */
+    int getColorBalance(int temperature) {
+        return mBalance[indexOf(temperature)];
+    }
+
+    /**
+     * Copy the RGB gains for the temperature into the given array.
+     *
+     * @return the given array
+     */
+    float[] getRGB(int temperature, float[] rgb) {
+        System.arraycopy(mRGB, indexOf(temperature) * 3, rgb, 0, 3);
+        return rgb;
+    }
+}
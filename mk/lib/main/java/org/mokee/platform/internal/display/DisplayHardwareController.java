@@ -16,19 +16,11 @@
  */
 package org.mokee.platform.internal.display;
 
-import android.animation.FloatArrayEvaluator;
-import android.animation.ValueAnimator;
-import android.animation.ValueAnimator.AnimatorUpdateListener;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.IBinder;
-import android.os.Parcel;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 import android.util.MathUtils;
 import android.util.Slog;
-import android.view.animation.LinearInterpolator;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -42,6 +34,7 @@ import mokee.providers.MKSettings;
 public class DisplayHardwareController extends LiveDisplayFeature {
 
     private final MKHardwareManager mHardware;
+    private final LiveDisplayCompositor mCompositor;
 
     // hardware capabilities
     private final boolean mUseAutoContrast;
@@ -59,9 +52,8 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private final float[] mAdditionalAdjustment = getDefaultAdjustment();
     private final float[] mColorAdjustment = getDefaultAdjustment();
 
-    private ValueAnimator mAnimator;
-
-    private final int mMaxColor;
+    // scratch buffer for the combined target, the compositor keeps its own copy
+    private final float[] mTargetAdjustment = getDefaultAdjustment();
 
     // settings uris
     private static final Uri DISPLAY_AUTO_CONTRAST =
@@ -73,10 +65,12 @@ public class DisplayHardwareController extends LiveDisplayFeature {
     private static final Uri DISPLAY_CABC =
             MKSettings.System.getUriFor(MKSettings.System.DISPLAY_CABC);
 
-    public DisplayHardwareController(Context context, Handler handler) {
+    public DisplayHardwareController(Context context, Handler handler,
+            LiveDisplayCompositor compositor) {
         super(context, handler);
 
         mHardware = MKHardwareManager.getInstance(mContext);
+        mCompositor = compositor;
         mUseCABC = mHardware
                 .isSupported(MKHardwareManager.FEATURE_ADAPTIVE_BACKLIGHT);
         mDefaultCABC = mContext.getResources().getBoolean(
@@ -99,10 +93,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
                 .isSupported(MKHardwareManager.FEATURE_DISPLAY_MODES);
 
         if (mUseColorAdjustment) {
-            mMaxColor = mHardware.getDisplayColorCalibrationMax();
             copyColors(getColorAdjustment(), mColorAdjustment);
-        } else {
-            mMaxColor = 0;
         }
     }
 
@@ -183,12 +174,9 @@ public class DisplayHardwareController extends LiveDisplayFeature {
 
     @Override
     protected synchronized void onScreenStateChanged() {
-        if (mUseColorAdjustment) {
-            if (mAnimator != null && mAnimator.isRunning() && !isScreenOn()) {
-                mAnimator.cancel();
-            } else if (isScreenOn()) {
-                updateColorAdjustment();
-            }
+        // a running transition is dropped by the compositor when the screen goes off
+        if (mUseColorAdjustment && isScreenOn()) {
+            updateColorAdjustment();
         }
     }
 
@@ -249,9 +237,11 @@ public class DisplayHardwareController extends LiveDisplayFeature {
             return;
         }
 
-        final float[] rgb = getDefaultAdjustment();
+        final float[] rgb = mTargetAdjustment;
 
-        if (!isLowPowerMode()) {
+        if (isLowPowerMode()) {
+            rgb[0] = rgb[1] = rgb[2] = 1.0f;
+        } else {
             copyColors(mColorAdjustment, rgb);
             rgb[0] *= mAdditionalAdjustment[0];
             rgb[1] *= mAdditionalAdjustment[1];
@@ -263,82 +253,7 @@ public class DisplayHardwareController extends LiveDisplayFeature {
         }
 
         if (validateColors(rgb)) {
-            animateDisplayColor(rgb);
-        }
-    }
-
-    /**
-     * Smoothly animate the current display colors to the new value.
-     */
-    private synchronized void animateDisplayColor(float[] targetColors) {
-
-        // always start with the current values in the hardware
-        int[] currentInts = mHardware.getDisplayColorCalibration();
-        float[] currentColors = new float[] {
-                (float)currentInts[0] / (float)mMaxColor,
-                (float)currentInts[1] / (float)mMaxColor,
-                (float)currentInts[2] / (float)mMaxColor };
-
-        if (currentColors[0] == targetColors[0] &&
-                currentColors[1] == targetColors[1] &&
-                currentColors[2] == targetColors[2]) {
-            return;
-        }
-
-        // max 500 ms, scaled vs. the largest delta
-        long duration = (long)(750 * (Math.max(Math.max(
-                Math.abs(currentColors[0] - targetColors[0]),
-                Math.abs(currentColors[1] - targetColors[1])),
-                Math.abs(currentColors[2] - targetColors[2]))));
-
-        if (DEBUG) {
-            Slog.d(TAG, "animateDisplayColor current=" + Arrays.toString(currentColors) +
-                    " targetColors=" + Arrays.toString(targetColors) + " duration=" + duration);
-        }
-
-        if (mAnimator != null) {
-            mAnimator.cancel();
-            mAnimator.removeAllUpdateListeners();
-        }
-
-        mAnimator = ValueAnimator.ofObject(
-                new FloatArrayEvaluator(new float[3]), currentColors, targetColors);
-        mAnimator.setDuration(duration);
-        mAnimator.setInterpolator(new LinearInterpolator());
-        mAnimator.addUpdateListener(new AnimatorUpdateListener() {
-            @Override
-            public void onAnimationUpdate(final ValueAnimator animation) {
-                synchronized (DisplayHardwareController.this) {
-                    if (isScreenOn()) {
-                        float[] value = (float[]) animation.getAnimatedValue();
-                        mHardware.setDisplayColorCalibration(new int[] {
-                                (int) (value[0] * mMaxColor),
-                                (int) (value[1] * mMaxColor),
-                                (int) (value[2] * mMaxColor)
-                        });
-                        screenRefresh();
-                    }
-                }
-            }
-        });
-        mAnimator.start();
-    }
-
-    /**
-     * Tell SurfaceFlinger to repaint the screen. This is called after updating
-     * hardware registers for display calibration to have an immediate effect.
-     */
-    private void screenRefresh() {
-        try {
-            final IBinder flinger = ServiceManager.getService("SurfaceFlinger");
-            if (flinger != null) {
-                final Parcel data = Parcel.obtain();
-                data.writeInterfaceToken("android.ui.ISurfaceComposer");
-                flinger.transact(1004, data, null, 0);
-                data.recycle();
-            }
-        } catch (RemoteException ex) {
-            Slog.e(TAG, "Failed to refresh screen", ex);
+            mCompositor.setDisplayColorCalibration(rgb);
         }
     }
 
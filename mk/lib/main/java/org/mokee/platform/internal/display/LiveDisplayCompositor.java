@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.mokee.platform.internal.display;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.MathUtils;
+import android.util.Slog;
+import android.view.Choreographer;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import mokee.hardware.MKHardwareManager;
+
+/**
+ * The compositor owns every animated hardware output of LiveDisplay.
+ *
+ * Features only hand over target values. All running transitions are
+ * advanced together from a single frame callback on the LiveDisplay
+ * thread, quantized to what the hardware accepts, and written only if
+ * the quantized output changed. Each output is written at most once
+ * per frame, and the screen is refreshed at most once per frame.
+ */
+final class LiveDisplayCompositor {
+
+    private static final String TAG = "LiveDisplay";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    // 5 ms per step of color balance
+    private static final long COLOR_BALANCE_STEP_DURATION = 5;
+
+    // 750 ms for a full swing of any channel, scaled vs. the largest delta
+    private static final long COLOR_CALIBRATION_MAX_DURATION = 750;
+
+    private static final String SURFACE_FLINGER = "SurfaceFlinger";
+    private static final String SURFACE_COMPOSER_DESCRIPTOR = "android.ui.ISurfaceComposer";
+
+    // ISurfaceComposer transaction which repaints everything
+    private static final int SURFACE_FLINGER_REPAINT_EVERYTHING = 1004;
+
+    private final Handler mHandler;
+    private final MKHardwareManager mHardware;
+
+    private final Transition mColorBalance = new Transition(1);
+    private final Transition mColorCalibration = new Transition(3);
+
+    // scratch buffer for color balance targets
+    private final float[] mBalanceTarget = new float[1];
+
+    // SurfaceFlinger handle, cleared when it dies
+    private final Object mFlingerLock = new Object();
+    private IBinder mFlinger;
+
+    private Choreographer mChoreographer;
+    private boolean mFrameScheduled;
+    private boolean mScreenOn;
+    private int mMaxColor = -1;
+
+    private int mFrameCount;
+    private int mWriteCount;
+    private int mRefreshCount;
+
+    LiveDisplayCompositor(Context context, Handler handler) {
+        mHandler = handler;
+        mHardware = MKHardwareManager.getInstance(context);
+    }
+
+    /**
+     * Hardware is only touched while the screen is on. When it goes off,
+     * running transitions are dropped where they are and the features
+     * will set fresh targets once it comes back.
+     */
+    synchronized void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        if (!screenOn) {
+            mColorBalance.invalidate();
+            mColorCalibration.invalidate();
+            if (mFrameScheduled) {
+                if (mChoreographer != null) {
+                    mChoreographer.removeFrameCallback(mFrameCallback);
+                }
+                mFrameScheduled = false;
+            }
+        } else if (mColorBalance.isRunning() || mColorCalibration.isRunning()) {
+            scheduleFrameLocked();
+        }
+    }
+
+    /**
+     * Smoothly move the color balance to the given value.
+     */
+    synchronized void setColorBalance(int balance) {
+        final Transition t = mColorBalance;
+        if (!t.isRunning()) {
+            // start from what the hardware shows, it may have been changed behind our back
+            t.setCurrent(mHardware.getColorBalance(), 1);
+        }
+
+        mBalanceTarget[0] = balance;
+        long duration = (long) (COLOR_BALANCE_STEP_DURATION *
+                Math.abs(t.getValue(0) - balance));
+
+        if (DEBUG) {
+            Slog.d(TAG, "setColorBalance current=" + t.getValue(0) +
+                    " target=" + balance + " duration=" + duration);
+        }
+
+        animateLocked(t, mBalanceTarget, duration);
+    }
+
+    /**
+     * Smoothly move the display calibration to the given normalized colors.
+     */
+    synchronized void setDisplayColorCalibration(float[] rgb) {
+        final Transition t = mColorCalibration;
+        if (mMaxColor < 0) {
+            mMaxColor = mHardware.getDisplayColorCalibrationMax();
+        }
+        if (!t.isRunning()) {
+            // start from what the hardware shows, it may have been changed behind our back
+            t.setCurrent(mHardware.getDisplayColorCalibration(), mMaxColor);
+        }
+
+        long duration = (long) (COLOR_CALIBRATION_MAX_DURATION * Math.max(Math.max(
+                Math.abs(t.getValue(0) - rgb[0]),
+                Math.abs(t.getValue(1) - rgb[1])),
+                Math.abs(t.getValue(2) - rgb[2])));
+
+        if (DEBUG) {
+            Slog.d(TAG, "setDisplayColorCalibration current=" + Arrays.toString(t.mValue) +
+                    " target=" + Arrays.toString(rgb) + " duration=" + duration);
+        }
+
+        animateLocked(t, rgb, duration);
+    }
+
+    private void animateLocked(Transition t, float[] target, long duration) {
+        if (!t.isRunning() && !t.changesOutput(target)) {
+            // nothing to do, the hardware already shows this
+            return;
+        }
+        t.start(target, SystemClock.uptimeMillis(), duration);
+        scheduleFrameLocked();
+    }
+
+    private void scheduleFrameLocked() {
+        if (mFrameScheduled || !mScreenOn) {
+            return;
+        }
+        mFrameScheduled = true;
+
+        // Choreographer is per-thread, so it must be used from the LiveDisplay thread
+        if (mHandler.getLooper().isCurrentThread()) {
+            postFrameCallback();
+        } else {
+            mHandler.post(mPostFrameRunnable);
+        }
+    }
+
+    private void postFrameCallback() {
+        if (mChoreographer == null) {
+            mChoreographer = Choreographer.getInstance();
+        }
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    private final Runnable mPostFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (LiveDisplayCompositor.this) {
+                if (mFrameScheduled) {
+                    postFrameCallback();
+                }
+            }
+        }
+    };
+
+    private final Choreographer.FrameCallback mFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (composeFrame()) {
+                screenRefresh();
+            }
+        }
+    };
+
+    /**
+     * Advance all transitions to now and push the changed outputs.
+     *
+     * @return true if the screen needs to be refreshed
+     */
+    private synchronized boolean composeFrame() {
+        mFrameScheduled = false;
+        if (!mScreenOn) {
+            return false;
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        boolean refresh = false;
+        mFrameCount++;
+
+        if (mColorBalance.advance(now)) {
+            mHardware.setColorBalance(mColorBalance.mOutput[0]);
+            mWriteCount++;
+        }
+
+        if (mColorCalibration.advance(now)) {
+            mHardware.setDisplayColorCalibration(mColorCalibration.mOutput);
+            mWriteCount++;
+            refresh = true;
+        }
+
+        if (mColorBalance.isRunning() || mColorCalibration.isRunning()) {
+            scheduleFrameLocked();
+        }
+
+        if (refresh) {
+            mRefreshCount++;
+        }
+        return refresh;
+    }
+
+    /**
+     * Tell SurfaceFlinger to repaint the screen. This is called after updating
+     * hardware registers for display calibration to have an immediate effect.
+     * Requests are already collapsed to one per frame by composeFrame.
+     */
+    private void screenRefresh() {
+        final IBinder flinger = getSurfaceFlinger();
+        if (flinger == null) {
+            return;
+        }
+
+        final Parcel data = Parcel.obtain();
+        try {
+            data.writeInterfaceToken(SURFACE_COMPOSER_DESCRIPTOR);
+            flinger.transact(SURFACE_FLINGER_REPAINT_EVERYTHING, data, null, 0);
+        } catch (RemoteException ex) {
+            Slog.e(TAG, "Failed to refresh screen", ex);
+        } finally {
+            data.recycle();
+        }
+    }
+
+    /**
+     * Look up SurfaceFlinger once and keep the handle until it dies.
+     */
+    private IBinder getSurfaceFlinger() {
+        synchronized (mFlingerLock) {
+            if (mFlinger == null) {
+                final IBinder flinger = ServiceManager.getService(SURFACE_FLINGER);
+                if (flinger == null) {
+                    return null;
+                }
+                try {
+                    flinger.linkToDeath(mFlingerDeathRecipient, 0);
+                } catch (RemoteException e) {
+                    // died already, look it up again next time
+                    return null;
+                }
+                mFlinger = flinger;
+            }
+            return mFlinger;
+        }
+    }
+
+    private final IBinder.DeathRecipient mFlingerDeathRecipient = new IBinder.DeathRecipient() {
+        @Override
+        public void binderDied() {
+            Slog.w(TAG, "SurfaceFlinger died");
+            synchronized (mFlingerLock) {
+                mFlinger = null;
+            }
+        }
+    };
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println();
+        pw.println("LiveDisplayCompositor State:");
+        pw.println("  mScreenOn=" + mScreenOn);
+        pw.println("  mFrameScheduled=" + mFrameScheduled);
+        pw.println("  mColorBalance=" + mColorBalance);
+        pw.println("  mColorCalibration=" + mColorCalibration);
+        pw.println("  frames=" + mFrameCount + " writes=" + mWriteCount +
+                " refreshes=" + mRefreshCount);
+    }
+
+    /**
+     * A linear transition of a hardware output with one or more channels,
+     * along with the quantized value last written to the hardware.
+     */
+    private static final class Transition {
+        final float[] mFrom;
+        final float[] mTo;
+        final float[] mValue;
+        final int[] mOutput;
+
+        // values are kept in units of 1 / mScale of the hardware value
+        private int mScale = 1;
+        private long mStartTime;
+        private long mDuration;
+        private boolean mRunning;
+
+        Transition(int channels) {
+            mFrom = new float[channels];
+            mTo = new float[channels];
+            mValue = new float[channels];
+            mOutput = new int[channels];
+        }
+
+        boolean isRunning() {
+            return mRunning;
+        }
+
+        float getValue(int channel) {
+            return mValue[channel];
+        }
+
+        void invalidate() {
+            mRunning = false;
+        }
+
+        void setCurrent(int value, int scale) {
+            mScale = Math.max(scale, 1);
+            mOutput[0] = value;
+            mValue[0] = (float) value / mScale;
+        }
+
+        void setCurrent(int[] values, int scale) {
+            mScale = Math.max(scale, 1);
+            for (int i = 0; i < mOutput.length; i++) {
+                mOutput[i] = values[i];
+                mValue[i] = (float) values[i] / mScale;
+            }
+        }
+
+        void start(float[] target, long now, long duration) {
+            for (int i = 0; i < mValue.length; i++) {
+                mFrom[i] = mValue[i];
+                mTo[i] = target[i];
+            }
+            mStartTime = now;
+            mDuration = duration;
+            mRunning = true;
+        }
+
+        boolean changesOutput(float[] target) {
+            for (int i = 0; i < mOutput.length; i++) {
+                if (quantize(target[i]) != mOutput[i]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Move to the given time and quantize.
+         *
+         * @return true if the quantized output changed
+         */
+        boolean advance(long now) {
+            if (!mRunning) {
+                return false;
+            }
+
+            float fraction = mDuration <= 0 ? 1.0f :
+                    MathUtils.constrain((float) (now - mStartTime) / mDuration, 0.0f, 1.0f);
+            if (fraction >= 1.0f) {
+                mRunning = false;
+            }
+
+            boolean changed = false;
+            for (int i = 0; i < mValue.length; i++) {
+                mValue[i] = MathUtils.lerp(mFrom[i], mTo[i], fraction);
+                final int output = quantize(mValue[i]);
+                if (output != mOutput[i]) {
+                    mOutput[i] = output;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        private int quantize(float value) {
+            return Math.round(value * mScale);
+        }
+
+        @Override
+        public String toString() {
+            return "[output=" + Arrays.toString(mOutput) + " target=" + Arrays.toString(mTo) +
+                    " running=" + mRunning + "]";
+        }
+    }
+}
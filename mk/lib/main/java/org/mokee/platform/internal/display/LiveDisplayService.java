@@ -97,6 +97,8 @@ public class LiveDisplayService extends MKSystemService {
 
     private final List<LiveDisplayFeature> mFeatures = new ArrayList<LiveDisplayFeature>();
 
+    private LiveDisplayCompositor mCompositor;
+
     private ColorTemperatureController mCTC;
     private DisplayHardwareController mDHC;
     private OutdoorModeController mOMC;
@@ -171,10 +173,12 @@ public class LiveDisplayService extends MKSystemService {
 
             mAwaitingNudge = getSunsetCounter() < 1;
 
-            mDHC = new DisplayHardwareController(mContext, mHandler);
+            mCompositor = new LiveDisplayCompositor(mContext, mHandler);
+
+            mDHC = new DisplayHardwareController(mContext, mHandler, mCompositor);
             mFeatures.add(mDHC);
 
-            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC);
+            mCTC = new ColorTemperatureController(mContext, mHandler, mDHC, mCompositor);
             mFeatures.add(mCTC);
 
             mOMC = new OutdoorModeController(mContext, mHandler);
@@ -240,6 +244,9 @@ public class LiveDisplayService extends MKSystemService {
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                if ((flags & DISPLAY_CHANGED) != 0) {
+                    mCompositor.setScreenOn(mState.mScreenOn);
+                }
                 for (int i = 0; i < mFeatures.size(); i++) {
                     mFeatures.get(i).update(flags, mState);
                 }
@@ -500,6 +507,10 @@ public class LiveDisplayService extends MKSystemService {
             for (int i = 0; i < mFeatures.size(); i++) {
                 mFeatures.get(i).dump(pw);
             }
+
+            if (mCompositor != null) {
+                mCompositor.dump(pw);
+            }
         }
     };
 
@@ -19,6 +19,7 @@ package org.mokee.platform.internal.display;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.SystemProperties;
 import android.text.TextUtils;
 import android.util.Range;
 import android.util.Slog;
@@ -46,6 +47,17 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     private List<Range<Float>> mRanges = new ArrayList<Range<Float>>();
 
+    // Decoded DISPLAY_PICTURE_ADJUSTMENT by display mode id, and the string it came from
+    private SparseArray<HSIC> mPictureAdjustments;
+    private String mPictureAdjustmentString;
+
+    private HSIC mDefaultPictureAdjustment;
+
+    // Current display mode id, valid while the hardware version is unchanged
+    private int mDisplayModeId;
+    private long mDisplayModeVersion;
+    private boolean mHasDisplayModeId;
+
     public PictureAdjustmentController(Context context, Handler handler) {
         super(context, handler);
         mHardware = MKHardwareManager.getInstance(context);
@@ -83,6 +95,7 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
 
     @Override
     protected void onSettingsChanged(Uri uri) {// nothing to do for mode switch
+        invalidatePreference();
         updatePictureAdjustment();
     }
 
@@ -151,28 +164,24 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
                 mRanges.get(4) : Range.create(0.0f, 0.0f);
     }
 
-    HSIC getDefaultPictureAdjustment() {
-        HSIC hsic = null;
-        if (mUsePictureAdjustment) {
-            hsic = mHardware.getDefaultPictureAdjustment();
-        }
-        if (hsic == null) {
-            hsic = new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
+    synchronized HSIC getDefaultPictureAdjustment() {
+        if (mDefaultPictureAdjustment == null) {
+            HSIC hsic = null;
+            if (mUsePictureAdjustment) {
+                hsic = mHardware.getDefaultPictureAdjustment();
+            }
+            if (hsic == null) {
+                hsic = new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
+            }
+            mDefaultPictureAdjustment = hsic;
         }
-        return hsic;
+        return mDefaultPictureAdjustment;
     }
 
-    HSIC getPictureAdjustment() {
+    synchronized HSIC getPictureAdjustment() {
         HSIC hsic = null;
         if (mUsePictureAdjustment) {
-            int modeID = 0;
-            if (mHasDisplayModes) {
-                DisplayMode mode = mHardware.getCurrentDisplayMode();
-                if (mode != null) {
-                    modeID = mode.id;
-                }
-            }
-            hsic = getPAForMode(modeID);
+            hsic = getPAForMode(getCurrentDisplayModeId());
         }
         if (hsic == null) {
             hsic = new HSIC(0.0f, 0.0f, 0.0f, 0.0f, 0.0f);
@@ -180,21 +189,34 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         return hsic;
     }
 
-    boolean setPictureAdjustment(HSIC hsic) {
+    synchronized boolean setPictureAdjustment(HSIC hsic) {
         if (mUsePictureAdjustment && hsic != null) {
-            int modeID = 0;
-            if (mHasDisplayModes) {
-                DisplayMode mode = mHardware.getCurrentDisplayMode();
-                if (mode != null) {
-                    modeID = mode.id;
-                }
-            }
-            setPAForMode(modeID, hsic);
+            setPAForMode(getCurrentDisplayModeId(), hsic);
             return true;
         }
         return false;
     }
 
+    /**
+     * MKHardwareService bumps the hardware version whenever the display mode is
+     * switched, so the mode is only asked again once that changed.
+     */
+    private int getCurrentDisplayModeId() {
+        if (!mHasDisplayModes) {
+            return 0;
+        }
+        final long version = SystemProperties.getLong(
+                MKHardwareManager.SYS_PROP_MK_HARDWARE_VERSION, 0);
+        if (!mHasDisplayModeId || mDisplayModeVersion != version) {
+            DisplayMode mode = mHardware.getCurrentDisplayMode();
+            mDisplayModeId = mode != null ? mode.id : 0;
+            mDisplayModeVersion = version;
+            // don't cache a failed lookup
+            mHasDisplayModeId = mode != null;
+        }
+        return mDisplayModeId;
+    }
+
     // TODO: Expose mode-based settings to upper layers
 
     private HSIC getPAForMode(int mode) {
@@ -211,7 +233,23 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
         packPreference(prefs);
     }
 
+    /**
+     * Drop the decoded preference if the setting no longer matches it.
+     * Our own writes come back through here and keep the cache.
+     */
+    private synchronized void invalidatePreference() {
+        if (mPictureAdjustments != null && !TextUtils.equals(mPictureAdjustmentString,
+                getString(MKSettings.System.DISPLAY_PICTURE_ADJUSTMENT))) {
+            mPictureAdjustments = null;
+            mPictureAdjustmentString = null;
+        }
+    }
+
     private SparseArray<HSIC> unpackPreference() {
+        if (mPictureAdjustments != null) {
+            return mPictureAdjustments;
+        }
+
         final SparseArray<HSIC> ret = new SparseArray<HSIC>();
 
         String pref = getString(MKSettings.System.DISPLAY_PICTURE_ADJUSTMENT);
@@ -224,6 +262,8 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
                 }
             }
         }
+        mPictureAdjustments = ret;
+        mPictureAdjustmentString = pref;
         return ret;
     }
 
@@ -237,7 +277,8 @@ public class PictureAdjustmentController extends LiveDisplayFeature {
             }
             sb.append(id).append(":").append(m.flatten());
         }
-        putString(MKSettings.System.DISPLAY_PICTURE_ADJUSTMENT, sb.toString());
+        mPictureAdjustmentString = sb.toString();
+        putString(MKSettings.System.DISPLAY_PICTURE_ADJUSTMENT, mPictureAdjustmentString);
     }
 
 }
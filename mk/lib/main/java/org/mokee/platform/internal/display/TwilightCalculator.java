@@ -61,6 +61,29 @@ public class TwilightCalculator {
     /** Current state */
     public int mState;
 
+    /**
+     * Returns the solar day whose transit is closest to the given time, which is
+     * the day {@link #calculateTwilight} reports on for that time.
+     *
+     * @param time time in milliseconds.
+     * @param longitude longitude in degrees.
+     */
+    public static long getSolarDay(long time, double longitude) {
+        final double daysSince2000 = (double) (time - UTC_2000) / DateUtils.DAY_IN_MILLIS;
+        return Math.round(daysSince2000 - J0 + longitude / 360);
+    }
+
+    /**
+     * Returns the mean solar transit of the given solar day, a time for which
+     * {@link #calculateTwilight} reports on that day.
+     *
+     * @param day solar day as returned by {@link #getSolarDay}.
+     * @param longitude longitude in degrees.
+     */
+    public static long getSolarTransit(long day, double longitude) {
+        return Math.round((day + J0 - longitude / 360) * DateUtils.DAY_IN_MILLIS) + UTC_2000;
+    }
+
     /**
      * calculates the civil twilight bases on time and geo-coordinates.
      *
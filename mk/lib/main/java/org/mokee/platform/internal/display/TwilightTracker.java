@@ -171,7 +171,7 @@ public final class TwilightTracker {
         private long mLastNetworkRegisterTime = -MIN_LOCATION_UPDATE_MS;
         private long mLastUpdateInterval;
         private Location mLocation;
-        private final TwilightCalculator mTwilightCalculator = new TwilightCalculator();
+        private final TwilightSchedule mTwilightSchedule = new TwilightSchedule();
 
         public void processNewLocation(Location location) {
             Message msg = obtainMessage(MSG_PROCESS_NEW_LOCATION, location);
@@ -346,23 +346,19 @@ public final class TwilightTracker {
             }
 
             final long now = System.currentTimeMillis();
+            final double latitude = mLocation.getLatitude();
+            final double longitude = mLocation.getLongitude();
 
-            // calculate yesterday's twilight
-            mTwilightCalculator.calculateTwilight(now - DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long yesterdaySunset = mTwilightCalculator.mSunset;
+            // only days not calculated yet for this location are calculated
+            final long today = TwilightCalculator.getSolarDay(now, longitude);
+            final TwilightSchedule schedule = mTwilightSchedule;
+            schedule.update(today - 1, today + 1, latitude, longitude);
 
-            // calculate today's twilight
-            mTwilightCalculator.calculateTwilight(now,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final boolean isNight = (mTwilightCalculator.mState == TwilightCalculator.NIGHT);
-            final long todaySunrise = mTwilightCalculator.mSunrise;
-            final long todaySunset = mTwilightCalculator.mSunset;
-
-            // calculate tomorrow's twilight
-            mTwilightCalculator.calculateTwilight(now + DateUtils.DAY_IN_MILLIS,
-                    mLocation.getLatitude(), mLocation.getLongitude());
-            final long tomorrowSunrise = mTwilightCalculator.mSunrise;
+            final long yesterdaySunset = schedule.getSunset(today - 1);
+            final long todaySunrise = schedule.getSunrise(today);
+            final long todaySunset = schedule.getSunset(today);
+            final long tomorrowSunrise = schedule.getSunrise(today + 1);
+            final boolean isNight = schedule.isNight(today, now);
 
             // set twilight state
             TwilightState state = new TwilightState(isNight, yesterdaySunset,
@@ -402,6 +398,82 @@ public final class TwilightTracker {
         }
     }
 
+    /**
+     * Civil twilight times of a few consecutive solar days at one location. Days
+     * already known are kept when the window moves, so the twice daily updates
+     * usually have nothing left to calculate.
+     */
+    private static final class TwilightSchedule {
+        private static final int DAYS = 4;
+
+        private final TwilightCalculator mCalculator = new TwilightCalculator();
+
+        private final long[] mSunrise = new long[DAYS];
+        private final long[] mSunset = new long[DAYS];
+        // state of days where the sun never rises or never sets
+        private final int[] mState = new int[DAYS];
+
+        private long mFirstDay;
+        private int mDays;
+        private double mLatitude;
+        private double mLongitude;
+
+        /**
+         * Makes sure the days from first to last are known for the given location.
+         */
+        void update(long first, long last, double latitude, double longitude) {
+            if (mDays > 0 && latitude == mLatitude && longitude == mLongitude
+                    && first >= mFirstDay && last < mFirstDay + mDays) {
+                return;
+            }
+
+            // keep the overlap with what we have, if the location didn't change
+            int keep = 0;
+            if (mDays > 0 && latitude == mLatitude && longitude == mLongitude
+                    && first >= mFirstDay && first < mFirstDay + mDays) {
+                final int from = (int) (first - mFirstDay);
+                keep = mDays - from;
+                System.arraycopy(mSunrise, from, mSunrise, 0, keep);
+                System.arraycopy(mSunset, from, mSunset, 0, keep);
+                System.arraycopy(mState, from, mState, 0, keep);
+            }
+
+            mFirstDay = first;
+            mLatitude = latitude;
+            mLongitude = longitude;
+            for (int i = keep; i < DAYS; i++) {
+                mCalculator.calculateTwilight(
+                        TwilightCalculator.getSolarTransit(first + i, longitude),
+                        latitude, longitude);
+                mSunrise[i] = mCalculator.mSunrise;
+                mSunset[i] = mCalculator.mSunset;
+                mState[i] = mCalculator.mState;
+            }
+            mDays = DAYS;
+
+            if (DEBUG) {
+                Slog.d(TAG, "Calculated " + (DAYS - keep) + " day(s) of twilight from day " +
+                        (first + keep));
+            }
+        }
+
+        long getSunrise(long day) {
+            return mSunrise[(int) (day - mFirstDay)];
+        }
+
+        long getSunset(long day) {
+            return mSunset[(int) (day - mFirstDay)];
+        }
+
+        boolean isNight(long day, long time) {
+            final int i = (int) (day - mFirstDay);
+            if (mSunrise[i] == -1 || mSunset[i] == -1) {
+                return mState[i] == TwilightCalculator.NIGHT;
+            }
+            return !(mSunrise[i] < time && mSunset[i] > time);
+        }
+    }
+
     private final BroadcastReceiver mUpdateLocationReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
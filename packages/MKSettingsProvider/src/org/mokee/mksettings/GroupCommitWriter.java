@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2016, The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mokee.mksettings;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * The GroupCommitWriter merges inserts issued concurrently by several threads into a single
+ * transaction, so that a burst of settings writes pays for one commit instead of one per row.
+ *
+ * The first thread to arrive becomes the leader and commits every insert queued so far, while
+ * the other threads wait for it. Inserts queued during that commit are picked up by the next
+ * leader. Each caller still returns only once its own row is committed.
+ */
+class GroupCommitWriter {
+    private static final String TAG = "GroupCommitWriter";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final SQLiteOpenHelper mHelper;
+
+    // Guards mPending and mCommitting, and is notified whenever a batch completes
+    private final Object mLock = new Object();
+    private ArrayList<InsertRequest> mPending = new ArrayList<InsertRequest>();
+    private boolean mCommitting;
+
+    private static final class InsertRequest {
+        final String tableName;
+        final ContentValues values;
+        boolean done;
+        long rowId = -1;
+        RuntimeException error;
+
+        InsertRequest(String tableName, ContentValues values) {
+            this.tableName = tableName;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Creates an instance of {@link GroupCommitWriter}
+     * @param helper The helper of the database to write to.
+     */
+    GroupCommitWriter(SQLiteOpenHelper helper) {
+        mHelper = helper;
+    }
+
+    /**
+     * Inserts a row, sharing the transaction with any concurrent inserts. Blocks until the row
+     * is committed.
+     * @param tableName The table to insert into.
+     * @param values The column_name/value pairs to insert.
+     * @return The row id of the inserted row, or -1 if an error occurred.
+     */
+    long insert(String tableName, ContentValues values) {
+        final InsertRequest request = new InsertRequest(tableName, values);
+        ArrayList<InsertRequest> batch = null;
+        boolean interrupted = false;
+
+        synchronized (mLock) {
+            mPending.add(request);
+
+            while (mCommitting && !request.done) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // Keep waiting, the row is already queued. Restore the interrupt later.
+                    interrupted = true;
+                }
+            }
+
+            if (!request.done) {
+                // Become the leader for everything queued so far
+                batch = mPending;
+                mPending = new ArrayList<InsertRequest>();
+                mCommitting = true;
+            }
+        }
+
+        if (batch != null) {
+            try {
+                // Write outside the lock so that more inserts can queue up meanwhile
+                commitBatch(batch);
+            } finally {
+                synchronized (mLock) {
+                    for (InsertRequest committed : batch) {
+                        committed.done = true;
+                    }
+                    mCommitting = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+        return request.rowId;
+    }
+
+    /**
+     * Inserts all rows of a batch in a single transaction. If the transaction fails, every
+     * request of the batch fails with the same error.
+     * @param batch The requests to commit.
+     */
+    private void commitBatch(ArrayList<InsertRequest> batch) {
+        RuntimeException error = null;
+        try {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                for (InsertRequest request : batch) {
+                    request.rowId = db.insert(request.tableName, null, request.values);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+
+        if (error != null) {
+            Log.w(TAG, "Failed to commit " + batch.size() + " row(s)", error);
+            for (InsertRequest request : batch) {
+                request.rowId = -1;
+                request.error = error;
+            }
+        } else if (LOCAL_LOGV) {
+            Log.d(TAG, "Committed " + batch.size() + " row(s) in one transaction");
+        }
+    }
+}
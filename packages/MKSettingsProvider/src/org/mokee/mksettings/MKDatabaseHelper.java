@@ -74,6 +74,9 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
     private int mUserHandle;
     private String mPublicSrcDir;
 
+    // Non-null when write-ahead logging is enabled
+    private final GroupCommitWriter mGroupCommitWriter;
+
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
@@ -102,6 +105,14 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
         mContext = context;
         mUserHandle = userId;
 
+        // Write-ahead logging lets readers proceed while a write is in progress, and lets the
+        // group commit writer merge concurrent writes into one transaction. Toggling it takes
+        // effect when the database is next opened, in either direction, with no schema change.
+        final boolean writeAheadLogging = context.getResources().getBoolean(
+                R.bool.def_write_ahead_logging);
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+        mGroupCommitWriter = writeAheadLogging ? new GroupCommitWriter(this) : null;
+
         try {
             String packageName = mContext.getPackageName();
             mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
@@ -111,6 +122,20 @@ public class MKDatabaseHelper extends SQLiteOpenHelper{
         }
     }
 
+    /**
+     * Inserts a row into the database. With write-ahead logging enabled, concurrent inserts are
+     * committed together in a single transaction.
+     * @param tableName The table to insert into.
+     * @param values The column_name/value pairs to insert.
+     * @return The row id of the inserted row, or -1 if an error occurred.
+     */
+    public long insert(String tableName, ContentValues values) {
+        if (mGroupCommitWriter != null) {
+            return mGroupCommitWriter.insert(tableName, values);
+        }
+        return getWritableDatabase().insert(tableName, null, values);
+    }
+
     /**
      * Creates System, Secure, and Global tables in the specified {@link SQLiteDatabase} and loads
      * default values into the created tables.
@@ -38,12 +38,19 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import org.mokee.internal.util.QSConstants;
@@ -51,10 +58,18 @@ import org.mokee.internal.util.QSUtils;
 
 import mokee.providers.MKSettings;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The MKSettingsProvider serves as a {@link ContentProvider} for MK specific settings
@@ -67,11 +82,32 @@ public class MKSettingsProvider extends ContentProvider {
 
     public static final String PREF_HAS_MIGRATED_MK_SETTINGS = "has_migrated_mkm_settings";
 
+    // Prefix of the shared preferences recording the progress of an unfinished migration
+    private static final String PREF_MIGRATED_TABLE_PREFIX = "migrated_mk_settings_";
+
+    private static final String[] MIGRATED_TABLES = new String[] {
+            MKDatabaseHelper.MKTableNames.TABLE_SYSTEM,
+            MKDatabaseHelper.MKTableNames.TABLE_SECURE,
+            MKDatabaseHelper.MKTableNames.TABLE_GLOBAL
+    };
+
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
 
     // Each defined user has their own settings
     protected final SparseArray<MKDatabaseHelper> mDbHelpers = new SparseArray<MKDatabaseHelper>();
 
+    // Server-side value caches, keyed by user id. Global settings only live in the owner's db,
+    // so a single cache serves them.
+    private static final int MAX_CACHE_ENTRIES = 200;
+    private static final int MAX_CACHE_ENTRY_SIZE = 500;
+
+    // SQLite's default limit on the number of host parameters in a single statement
+    private static final int MAX_SELECTION_ARGS = 999;
+    private final SparseArray<SettingsCache> mSystemCaches = new SparseArray<SettingsCache>();
+    private final SparseArray<SettingsCache> mSecureCaches = new SparseArray<SettingsCache>();
+    private final SettingsCache mGlobalCache = new SettingsCache(
+            MKDatabaseHelper.MKTableNames.TABLE_GLOBAL);
+
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
     private static final int GLOBAL = 3;
@@ -100,23 +136,53 @@ public class MKSettingsProvider extends ContentProvider {
                 ITEM_MATCHER, GLOBAL_ITEM_NAME);
     }
 
+    // Serializes updates of the table version and generation properties
+    private final Object mVersionLock = new Object();
+
+    // Change notifications are coalesced over this window
+    private static final long NOTIFY_CHANGE_DELAY_MS = 50;
+    private static final int MSG_FLUSH_CHANGES = 1;
+
+    // Changes waiting to be published, keyed by table name. Synchronized on itself.
+    private final ArrayMap<String, PendingChange> mPendingChanges =
+            new ArrayMap<String, PendingChange>();
+    private HandlerThread mNotifyThread;
+    private Handler mNotifyHandler;
+
     private UserManager mUserManager;
-    private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
 
+    // Serializes migrations, which may fan out to worker threads
+    private final Object mMigrationLock = new Object();
+
+    // Mirrors PREF_HAS_MIGRATED_MK_SETTINGS so the call path never touches SharedPreferences
+    private volatile boolean mHasMigratedMKSettings;
+    // Whether the pre boot receiver state has been verified in this process
+    private volatile boolean mHasCheckedPreBootReceiver;
+
     @Override
     public boolean onCreate() {
         if (LOCAL_LOGV) Log.d(TAG, "Creating MKSettingsProvider");
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_OWNER);
+        mNotifyThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mNotifyThread.start();
+        mNotifyHandler = new Handler(mNotifyThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_FLUSH_CHANGES:
+                        flushPendingChanges();
+                        break;
+                }
+            }
+        };
 
-        mUriBuilder = new Uri.Builder();
-        mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
-        mUriBuilder.authority(MKSettings.AUTHORITY);
+        establishDbTracking(UserHandle.USER_OWNER);
 
         mSharedPrefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        mHasMigratedMKSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_MK_SETTINGS, false);
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
@@ -141,20 +207,66 @@ public class MKSettingsProvider extends ContentProvider {
     // region Migration Methods
 
     /**
-     * Migrates MK settings for all existing users if this has not been run before.
+     * Migrates MK settings for all existing users if this has not been run before. Users are
+     * migrated concurrently, and each migrated table is recorded so that an interrupted migration
+     * resumes where it left off instead of starting over.
      */
     private void migrateMKSettingsForExistingUsersIfNeeded() {
-        boolean hasMigratedMKSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_MK_SETTINGS,
-                false);
+        synchronized (mMigrationLock) {
+            if (mHasMigratedMKSettings) {
+                return;
+            }
 
-        if (!hasMigratedMKSettings) {
             long startTime = System.currentTimeMillis();
 
-            for (UserInfo user : mUserManager.getUsers()) {
-                migrateMKSettingsForUser(user.id);
+            final List<UserInfo> users = mUserManager.getUsers();
+            final int threadCount = Math.max(1, Math.min(users.size(),
+                    Runtime.getRuntime().availableProcessors()));
+            final ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            final List<Callable<Boolean>> tasks =
+                    new ArrayList<Callable<Boolean>>(users.size());
+            for (UserInfo user : users) {
+                final int userId = user.id;
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return migrateMKSettingsForUserLocked(userId, true);
+                    }
+                });
             }
 
-            mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_MK_SETTINGS, true).commit();
+            boolean completed = true;
+            try {
+                for (Future<Boolean> future : executor.invokeAll(tasks)) {
+                    try {
+                        if (!future.get()) {
+                            completed = false;
+                        }
+                    } catch (ExecutionException e) {
+                        Log.e(TAG, "Failed to migrate MK settings", e.getCause());
+                        completed = false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while migrating MK settings");
+                completed = false;
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // Leave the recorded progress in place so that the next attempt resumes from it
+            if (!completed) {
+                return;
+            }
+
+            SharedPreferences.Editor editor = mSharedPrefs.edit();
+            for (UserInfo user : users) {
+                for (String tableName : MIGRATED_TABLES) {
+                    editor.remove(getMigrationProgressKey(user.id, tableName));
+                }
+            }
+            editor.putBoolean(PREF_HAS_MIGRATED_MK_SETTINGS, true).commit();
+            mHasMigratedMKSettings = true;
 
             // TODO: Add this as part of a boot message to the UI
             long timeDiffMillis = System.currentTimeMillis() - startTime;
@@ -167,23 +279,121 @@ public class MKSettingsProvider extends ContentProvider {
      * @param userId The id of the user to run MK settings migration for.
      */
     private void migrateMKSettingsForUser(int userId) {
-        synchronized (this) {
-            if (LOCAL_LOGV) Log.d(TAG, "MK settings will be migrated for user id: " + userId);
+        synchronized (mMigrationLock) {
+            migrateMKSettingsForUserLocked(userId, false);
+        }
+    }
+
+    /**
+     * Migrates MK settings for a specific user. Must be called with mMigrationLock held, possibly
+     * by the thread which scheduled this migration.
+     * @param userId The id of the user to run MK settings migration for.
+     * @param resume Whether to skip tables which were already migrated by an earlier attempt, and
+     *     to record the tables migrated by this one.
+     * @return Whether every table was migrated completely.
+     */
+    private boolean migrateMKSettingsForUserLocked(int userId, boolean resume) {
+        boolean completed = true;
+        if (LOCAL_LOGV) Log.d(TAG, "MK settings will be migrated for user id: " + userId);
+
+        for (String tableName : MIGRATED_TABLES) {
+            // Global settings are shared by all users and live in the owner's database, so
+            // a full migration only needs to copy them once
+            if (resume && MKDatabaseHelper.MKTableNames.TABLE_GLOBAL.equals(tableName)
+                    && userId != UserHandle.USER_OWNER) {
+                continue;
+            }
+
+            final String progressKey = getMigrationProgressKey(userId, tableName);
+            if (resume && mSharedPrefs.getBoolean(progressKey, false)) {
+                if (LOCAL_LOGV) Log.d(TAG, "Skipping already migrated MK " + tableName + " table");
+                continue;
+            }
 
-            // Migrate system settings
-            int rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_SYSTEM, MKSettings.System.LEGACY_SYSTEM_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK system table");
+            int rowsMigrated = migrateMKSettingsForTable(userId, tableName);
+            if (rowsMigrated < 0) {
+                // Not recorded, so that the next attempt migrates this table again
+                Log.w(TAG, "Failed to migrate MK " + tableName + " table for user " + userId);
+                completed = false;
+                continue;
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK " + tableName + " table");
 
-            // Migrate secure settings
-            rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_SECURE, MKSettings.Secure.LEGACY_SECURE_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK secure table");
+            if (resume) {
+                mSharedPrefs.edit().putBoolean(progressKey, true).commit();
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * @param userId
+     * @param tableName
+     * @return The shared preference recording that a table was migrated for a user.
+     */
+    private static String getMigrationProgressKey(int userId, String tableName) {
+        return PREF_MIGRATED_TABLE_PREFIX + userId + "_" + tableName;
+    }
 
-            // Migrate global settings
-            rowsMigrated = migrateMKSettingsForTable(userId,
-                    MKDatabaseHelper.MKTableNames.TABLE_GLOBAL, MKSettings.Global.LEGACY_GLOBAL_SETTINGS);
-            if (LOCAL_LOGV) Log.d(TAG, "Migrated " + rowsMigrated + " to MK global table");
+    /**
+     * Reads the legacy {@link Settings} table for a user with a single query.
+     * @param userId The id of the user to read the settings of.
+     * @param tableName The name of the table to read.
+     * @return A map of the names and values in the table, or null if the table can't be queried,
+     *     in which case callers should fall back to reading individual settings.
+     */
+    private Map<String, String> snapshotLegacyTable(int userId, String tableName) {
+        final Uri legacyUri;
+        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+            legacyUri = Settings.System.CONTENT_URI;
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+            legacyUri = Settings.Secure.CONTENT_URI;
+        } else {
+            legacyUri = Settings.Global.CONTENT_URI;
+        }
+
+        // The legacy provider only supports single name selections, so read the whole table
+        Cursor cursor = null;
+        try {
+            cursor = getContext().getContentResolver().query(
+                    ContentProvider.maybeAddUserId(legacyUri, userId),
+                    new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                    null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+
+            final Map<String, String> snapshot = new HashMap<String, String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                snapshot.put(cursor.getString(0), cursor.getString(1));
+            }
+            return snapshot;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Can't read legacy " + tableName + " table for user " + userId, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a single legacy {@link Settings} value, from the snapshot if there is one.
+     */
+    private String getLegacyValue(Map<String, String> snapshot, int userId, String tableName,
+            String settingsKey) {
+        if (snapshot != null) {
+            return snapshot.get(settingsKey);
+        }
+
+        ContentResolver contentResolver = getContext().getContentResolver();
+        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+            return Settings.System.getStringForUser(contentResolver, settingsKey, userId);
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+            return Settings.Secure.getStringForUser(contentResolver, settingsKey, userId);
+        } else {
+            return Settings.Global.getStringForUser(contentResolver, settingsKey, userId);
         }
     }
 
@@ -191,63 +401,64 @@ public class MKSettingsProvider extends ContentProvider {
      * Migrates MK settings for a specific table and user id.
      * @param userId The id of the user to run MK settings migration for.
      * @param tableName The name of the table to run MK settings migration on.
-     * @param settings An array of keys to migrate from {@link Settings} to {@link MKSettings}
-     * @return Number of rows migrated.
+     * @return Number of rows migrated, or -1 if not every staged row could be written or the
+     *     legacy table couldn't be read.
      */
-    private int migrateMKSettingsForTable(int userId, String tableName, String[] settings) {
-        ContentResolver contentResolver = getContext().getContentResolver();
+    private int migrateMKSettingsForTable(int userId, String tableName) {
+        final String[] settings;
+        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+            settings = MKSettings.System.LEGACY_SYSTEM_SETTINGS;
+        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+            settings = MKSettings.Secure.LEGACY_SECURE_SETTINGS;
+        } else {
+            settings = MKSettings.Global.LEGACY_GLOBAL_SETTINGS;
+        }
+
+        final Map<String, String> snapshot = snapshotLegacyTable(userId, tableName);
         ContentValues[] contentValues = new ContentValues[settings.length];
 
         int migrateSettingsCount = 0;
         for (String settingsKey : settings) {
-            String settingsValue = null;
+            String settingsValue = getLegacyValue(snapshot, userId, tableName, settingsKey);
 
-            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
-                settingsValue = Settings.System.getStringForUser(contentResolver, settingsKey,
-                        userId);
-            }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
-                settingsValue = Settings.Secure.getStringForUser(contentResolver, settingsKey,
-                        userId);
+            // insert dnd, edit tiles for upgrade from mkl-mr1 -> mkm
+            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)
+                    && MKSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
+                    && (!settingsValue.contains(QSConstants.TILE_DND)
+                    || !settingsValue.contains(QSConstants.TILE_EDIT)))) {
+                if (LOCAL_LOGV) {
+                    Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: "
+                            + settingsValue);
+                }
 
-                // insert dnd, edit tiles for upgrade from mkl-mr1 -> mkm
-                if (MKSettings.Secure.QS_TILES.equals(settingsKey) && (settingsValue != null
-                        && (!settingsValue.contains(QSConstants.TILE_DND)
-                        || !settingsValue.contains(QSConstants.TILE_EDIT)))) {
-                    if (LOCAL_LOGV) {
-                        Log.d(TAG, "Need to insert DND or Edit tile for upgrade, currentValue: "
-                                + settingsValue);
+                final List<String> tiles = new ArrayList<String>();
+                for (String tile : TextUtils.split(settingsValue, ",")) {
+                    if (!TextUtils.isEmpty(tile)) {
+                        tiles.add(tile);
                     }
+                }
 
-                    final List<String> tiles = Settings.Secure.getDelimitedStringAsList(
-                            contentResolver, settingsKey, ",");
-
-                    if (!tiles.contains(QSConstants.TILE_DND)) {
-                        tiles.add(QSConstants.TILE_DND);
-                    }
-                    if (!tiles.contains(QSConstants.TILE_EDIT)) {
-                        // we need to insert edit tile to the last tile on the first page!
-                        // ensure edit tile is present
+                if (!tiles.contains(QSConstants.TILE_DND)) {
+                    tiles.add(QSConstants.TILE_DND);
+                }
+                if (!tiles.contains(QSConstants.TILE_EDIT)) {
+                    // we need to insert edit tile to the last tile on the first page!
+                    // ensure edit tile is present
 
-                        // use value in old database
-                        boolean nineTilesPerPage = Settings.Secure.getInt(contentResolver,
-                                MKSettings.Secure.QS_USE_MAIN_TILES, 0) == 1;
+                    // use value in old database
+                    boolean nineTilesPerPage = "1".equals(getLegacyValue(snapshot, userId,
+                            tableName, MKSettings.Secure.QS_USE_MAIN_TILES));
 
-                        final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
+                    final int TILES_PER_PAGE = nineTilesPerPage ? 9 : 8;
 
-                        if (tiles.size() > TILES_PER_PAGE) {
-                            tiles.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
-                        } else {
-                            tiles.add(QSConstants.TILE_EDIT);
-                        }
+                    if (tiles.size() > TILES_PER_PAGE) {
+                        tiles.add((TILES_PER_PAGE - 1), QSConstants.TILE_EDIT);
+                    } else {
+                        tiles.add(QSConstants.TILE_EDIT);
                     }
-
-                    settingsValue = TextUtils.join(",", tiles);
                 }
-            }
-            else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
-                settingsValue = Settings.Global.getStringForUser(contentResolver, settingsKey,
-                        userId);
+
+                settingsValue = TextUtils.join(",", tiles);
             }
 
             if (LOCAL_LOGV) Log.d(TAG, "Table: " + tableName + ", Key: " + settingsKey + ", Value: "
@@ -268,12 +479,17 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         int rowsInserted = 0;
-        if (contentValues.length > 0) {
-            Uri uri = mUriBuilder.build();
-            uri = uri.buildUpon().appendPath(tableName).build();
-            rowsInserted = bulkInsertForUser(userId, uri, contentValues);
+        if (migrateSettingsCount > 0) {
+            rowsInserted = bulkInsertForUser(userId, getContentUriForTable(tableName),
+                    contentValues);
         }
 
+        // The bulk insert rolls back entirely if any row fails. Without a snapshot, finding
+        // nothing at all more likely means the legacy provider couldn't be read.
+        if (rowsInserted != migrateSettingsCount
+                || (snapshot == null && migrateSettingsCount == 0)) {
+            return -1;
+        }
         return rowsInserted;
     }
 
@@ -287,6 +503,8 @@ public class MKSettingsProvider extends ContentProvider {
             // our helpers and other internal bookkeeping.
 
             mDbHelpers.delete(userId);
+            mSystemCaches.delete(userId);
+            mSecureCaches.delete(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -311,20 +529,8 @@ public class MKSettingsProvider extends ContentProvider {
             }
         }
 
-        boolean hasMigratedMKSettings = mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_MK_SETTINGS,
-                false);
-        final ComponentName preBootReceiver = new ComponentName("org.mokee.mksettings",
-                "org.mokee.mksettings.PreBootReceiver");
-        final PackageManager packageManager = getContext().getPackageManager();
-        if (!hasMigratedMKSettings &&
-                packageManager.getComponentEnabledSetting(preBootReceiver)
-                        == PackageManager.COMPONENT_ENABLED_STATE_DISABLED ) {
-            if (LOCAL_LOGV) {
-                Log.d(TAG, "Reenabling component preboot receiver");
-            }
-            packageManager.setComponentEnabledSetting(preBootReceiver,
-                    PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
-                    PackageManager.DONT_KILL_APP);
+        if (!mHasMigratedMKSettings && !mHasCheckedPreBootReceiver) {
+            enablePreBootReceiverIfNeeded();
         }
 
         // Migrate methods
@@ -348,6 +554,15 @@ public class MKSettingsProvider extends ContentProvider {
         else if (MKSettings.CALL_METHOD_GET_GLOBAL.equals(method)) {
             return lookupSingleValue(callingUserId, MKSettings.Global.CONTENT_URI, request);
         }
+        else if (MKSettings.CALL_METHOD_GET_MULTI_SYSTEM.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.System.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_MULTI_SECURE.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.Secure.CONTENT_URI, args);
+        }
+        else if (MKSettings.CALL_METHOD_GET_MULTI_GLOBAL.equals(method)) {
+            return lookupMultipleValues(callingUserId, MKSettings.Global.CONTENT_URI, args);
+        }
 
         // Put methods - new value is in the args bundle under the key named by
         // the Settings.NameValueTable.VALUE static.
@@ -356,12 +571,27 @@ public class MKSettingsProvider extends ContentProvider {
 
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (MKSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || MKSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(mokee.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
+        // Multi-key put methods - names and values are in the args bundle
+        if (MKSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
+            insertMultipleValues(callingUserId, MKSettings.System.CONTENT_URI, args);
+            return null;
+        }
+        else if (MKSettings.CALL_METHOD_PUT_MULTI_SECURE.equals(method)) {
+            insertMultipleValues(callingUserId, MKSettings.Secure.CONTENT_URI, args);
+            return null;
+        }
+        else if (MKSettings.CALL_METHOD_PUT_MULTI_GLOBAL.equals(method)) {
+            insertMultipleValues(callingUserId, MKSettings.Global.CONTENT_URI, args);
+            return null;
+        }
+
         // Put methods
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
@@ -380,6 +610,38 @@ public class MKSettingsProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Re-enables the pre boot receiver if settings have not been migrated yet, so that migration
+     * is retried on the next boot. This costs a PackageManager round trip, so it only runs once
+     * per process.
+     */
+    private void enablePreBootReceiverIfNeeded() {
+        synchronized (this) {
+            if (mHasCheckedPreBootReceiver) {
+                return;
+            }
+
+            final ComponentName preBootReceiver = new ComponentName("org.mokee.mksettings",
+                    "org.mokee.mksettings.PreBootReceiver");
+            final PackageManager packageManager = getContext().getPackageManager();
+            final long oldId = Binder.clearCallingIdentity();
+            try {
+                if (packageManager.getComponentEnabledSetting(preBootReceiver)
+                        == PackageManager.COMPONENT_ENABLED_STATE_DISABLED) {
+                    if (LOCAL_LOGV) {
+                        Log.d(TAG, "Reenabling component preboot receiver");
+                    }
+                    packageManager.setComponentEnabledSetting(preBootReceiver,
+                            PackageManager.COMPONENT_ENABLED_STATE_ENABLED,
+                            PackageManager.DONT_KILL_APP);
+                }
+            } finally {
+                Binder.restoreCallingIdentity(oldId);
+            }
+            mHasCheckedPreBootReceiver = true;
+        }
+    }
+
     private void enforceWritePermission(String permission) {
         if (getContext().checkCallingOrSelfPermission(permission)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -390,13 +652,34 @@ public class MKSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Looks up a single value for a specific user, uri, and key.
+     * Looks up a single value for a specific user, uri, and key. Values are served from the
+     * in-memory {@link SettingsCache} of the table when possible and only hit the database on a
+     * cache miss.
      * @param userId The id of the user to perform the lookup for.
      * @param uri The uri for which table to perform the lookup in.
      * @param key The key to perform the lookup with.
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
+        final String tableName = getTableNameFromUri(uri);
+        final SettingsCache cache = getOrCreateCache(tableName, userId);
+
+        Bundle value = cache.get(key);
+        if (value != null) {
+            if (LOCAL_LOGV) Log.v(TAG, "cache hit [" + tableName + "]: " + key);
+            return value;
+        }
+
+        // Query without holding the cache's lock so readers don't queue up behind the database.
+        // A write evicts only after its row is committed, so if nothing was evicted meanwhile
+        // the value read is still current.
+        final int generation;
+        synchronized (cache) {
+            generation = cache.getGeneration();
+        }
+
+        // Stays null if the row does not exist, which is cached as well
+        String found = null;
         Cursor cursor = null;
         try {
             cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
@@ -404,9 +687,7 @@ public class MKSettingsProvider extends ContentProvider {
 
             if (cursor != null && cursor.getCount() == 1) {
                 cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
+                found = cursor.getString(0);
             }
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
@@ -417,7 +698,154 @@ public class MKSettingsProvider extends ContentProvider {
             }
         }
 
-        return NULL_SETTING;
+        synchronized (cache) {
+            if (cache.getGeneration() == generation) {
+                return cache.putValue(key, found);
+            }
+        }
+        return SettingsCache.toBundle(found);
+    }
+
+    /**
+     * Looks up several values for a specific user and uri in one pass. Values are served from the
+     * table's {@link SettingsCache} where possible, and the remaining names are read from the
+     * database with a single query.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments, holding the names to look up under
+     *     {@link MKSettings#CALL_METHOD_NAMES_KEY}. If no names are given, the whole table is
+     *     returned.
+     * @return A {@link Bundle} holding parallel arrays of the names and values found. Names which
+     *     are not present in the table are omitted.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] names = args == null ? null
+                : args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY);
+        final String tableName = getTableNameFromUri(uri);
+        final SettingsCache cache = getOrCreateCache(tableName, userId);
+        final ArrayList<String> foundNames = new ArrayList<String>();
+        final ArrayList<String> foundValues = new ArrayList<String>();
+
+        HashSet<String> missing = null;
+        if (names != null) {
+            for (String name : names) {
+                Bundle value = cache.get(name);
+                if (value == null) {
+                    if (missing == null) {
+                        missing = new HashSet<String>();
+                    }
+                    missing.add(name);
+                } else if (value != NULL_SETTING) {
+                    foundNames.add(name);
+                    foundValues.add(value.getPairValue());
+                }
+            }
+        }
+
+        if (names == null || missing != null) {
+            String selection = null;
+            String[] selectionArgs = null;
+            // Fall back to reading the whole table rather than exceeding the bind limit
+            if (missing != null && missing.size() <= MAX_SELECTION_ARGS) {
+                selectionArgs = missing.toArray(new String[missing.size()]);
+                StringBuilder sb = new StringBuilder(Settings.NameValueTable.NAME)
+                        .append(" IN (?");
+                for (int i = 1; i < selectionArgs.length; i++) {
+                    sb.append(",?");
+                }
+                selection = sb.append(')').toString();
+            }
+
+            // Query outside the cache's lock, like lookupSingleValue
+            final int generation;
+            synchronized (cache) {
+                generation = cache.getGeneration();
+            }
+
+            final ArrayList<String> readNames = new ArrayList<String>();
+            final ArrayList<String> readValues = new ArrayList<String>();
+            Cursor cursor = null;
+            try {
+                cursor = queryForUser(userId, uri, new String[] {
+                        Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                        selection, selectionArgs, null);
+                while (cursor != null && cursor.moveToNext()) {
+                    final String name = cursor.getString(0);
+                    final String value = cursor.getString(1);
+                    readNames.add(name);
+                    readValues.add(value);
+                    final boolean requested = missing == null || missing.remove(name);
+                    if (requested && value != null) {
+                        foundNames.add(name);
+                        foundValues.add(value);
+                    }
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "settings lookup error", e);
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+
+            synchronized (cache) {
+                if (cache.getGeneration() == generation) {
+                    for (int i = 0; i < readNames.size(); i++) {
+                        cache.putValue(readNames.get(i), readValues.get(i));
+                    }
+                    // Negative caching for names which are not in the table
+                    if (missing != null) {
+                        for (String name : missing) {
+                            cache.putValue(name, null);
+                        }
+                    }
+                }
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putStringArray(MKSettings.CALL_METHOD_NAMES_KEY,
+                foundNames.toArray(new String[foundNames.size()]));
+        result.putStringArray(MKSettings.CALL_METHOD_VALUES_KEY,
+                foundValues.toArray(new String[foundValues.size()]));
+        return result;
+    }
+
+    /**
+     * Validates and atomically inserts several values for a specific user and uri. Either all
+     * values are written, in a single transaction followed by a single change notification, or
+     * none are.
+     * @param userId The user id to perform the insert for.
+     * @param uri The uri for which table to perform the insert in.
+     * @param args The call arguments, holding parallel arrays of names and values under
+     *     {@link MKSettings#CALL_METHOD_NAMES_KEY} and {@link MKSettings#CALL_METHOD_VALUES_KEY}.
+     * @return Number of rows inserted.
+     */
+    private int insertMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] names = args == null ? null
+                : args.getStringArray(MKSettings.CALL_METHOD_NAMES_KEY);
+        final String[] values = args == null ? null
+                : args.getStringArray(MKSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Names and values must be parallel arrays");
+        }
+
+        final String tableName = getTableNameFromUri(uri);
+        final ContentValues[] contentValues = new ContentValues[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (MKDatabaseHelper.MKTableNames.TABLE_SYSTEM.equals(tableName)) {
+                validateSystemSettingNameValue(names[i], values[i]);
+            } else if (MKDatabaseHelper.MKTableNames.TABLE_SECURE.equals(tableName)) {
+                validateSecureSettingValue(names[i], values[i]);
+            }
+
+            contentValues[i] = new ContentValues();
+            contentValues[i].put(Settings.NameValueTable.NAME, names[i]);
+            contentValues[i].put(Settings.NameValueTable.VALUE, values[i]);
+        }
+
+        return bulkInsertForUser(userId, uri, contentValues);
     }
 
     @Override
@@ -530,7 +958,24 @@ public class MKSettingsProvider extends ContentProvider {
         }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            final String[] names = new String[numRowsAffected];
+            final SettingsCache cache = getOrCreateCache(tableName, userId);
+            synchronized (cache) {
+                int i = 0;
+                for (ContentValues value : values) {
+                    if (value != null) {
+                        cache.evict(value);
+                        names[i++] = value.getAsString(Settings.NameValueTable.NAME);
+                    }
+                }
+            }
+            // Observers watch the item uris, so notify each name like a single insert does
+            for (String name : names) {
+                if (name != null) {
+                    notifyChange(Uri.withAppendedPath(uri, name), tableName, userId,
+                            new String[] { name });
+                }
+            }
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -573,13 +1018,16 @@ public class MKSettingsProvider extends ContentProvider {
             validateSecureSettingValue(name, value);
         }
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        long rowId = dbHelper.insert(tableName, values);
 
         Uri returnUri = null;
         if (rowId > -1) {
+            final SettingsCache cache = getOrCreateCache(tableName, userId);
+            synchronized (cache) {
+                cache.evict(values);
+            }
             returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
+            notifyChange(returnUri, tableName, userId, new String[] { name });
             if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
                     tableName);
         }
@@ -609,6 +1057,8 @@ public class MKSettingsProvider extends ContentProvider {
             numRowsAffected = db.delete(tableName, selection, selectionArgs);
 
             if (numRowsAffected > 0) {
+                // The selection is arbitrary, so we can't tell which keys went away
+                invalidateCache(tableName, callingUserId);
                 notifyChange(uri, tableName, callingUserId);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
@@ -652,6 +1102,7 @@ public class MKSettingsProvider extends ContentProvider {
         int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
 
         if (numRowsAffected > 0) {
+            invalidateCache(tableName, callingUserId);
             notifyChange(uri, tableName, callingUserId);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
@@ -807,36 +1258,182 @@ public class MKSettingsProvider extends ContentProvider {
     }
 
     /**
-     * Modify setting version for an updated table before notifying of change. The
-     * {@link MKSettings} class uses these to provide client-side caches.
+     * Modify setting version for an updated table before notifying of change, when the changed
+     * names are not known.
      * @param uri to send notifications for
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+        notifyChange(uri, tableName, userId, null);
+    }
+
+    /**
+     * Queues a change notification for an updated table. Changes are coalesced over
+     * {@link #NOTIFY_CHANGE_DELAY_MS} and published from a background thread, so that a burst of
+     * writes to a table costs one version bump and one notification per user.
+     * @param uri to send notifications for
+     * @param userId
+     * @param names The names of the changed settings, or null if not known
+     */
+    private void notifyChange(Uri uri, String tableName, int userId, String[] names) {
         final boolean isGlobal = tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL);
-        if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
-            property = MKSettings.System.SYS_PROP_MK_SETTING_VERSION;
-        } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
-            property = MKSettings.Secure.SYS_PROP_MK_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = MKSettings.Global.SYS_PROP_MK_SETTING_VERSION;
+        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
+
+        synchronized (mPendingChanges) {
+            PendingChange change = mPendingChanges.get(tableName);
+            if (change == null) {
+                change = new PendingChange(getContentUriForTable(tableName));
+                mPendingChanges.put(tableName, change);
+            }
+            change.add(uri, notifyTarget, names);
+
+            if (!mNotifyHandler.hasMessages(MSG_FLUSH_CHANGES)) {
+                mNotifyHandler.sendEmptyMessageDelayed(MSG_FLUSH_CHANGES,
+                        NOTIFY_CHANGE_DELAY_MS);
+            }
         }
+        if (LOCAL_LOGV) Log.v(TAG, "queued notification for " + notifyTarget + ": " + uri);
+    }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+    /**
+     * Publishes all queued changes: modify setting version and generations once per updated
+     * table, then notify observers once per table and user. The {@link MKSettings} class uses
+     * the version and generations to provide client-side caches.
+     */
+    private void flushPendingChanges() {
+        final ArrayMap<String, PendingChange> changes;
+        synchronized (mPendingChanges) {
+            changes = new ArrayMap<String, PendingChange>(mPendingChanges);
+            mPendingChanges.clear();
         }
 
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        for (int i = 0; i < changes.size(); i++) {
+            final String tableName = changes.keyAt(i);
+            final PendingChange change = changes.valueAt(i);
+
+            String property = null;
+            String generationsProperty = null;
+            if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SYSTEM)) {
+                property = MKSettings.System.SYS_PROP_MK_SETTING_VERSION;
+                generationsProperty = MKSettings.System.SYS_PROP_MK_SETTING_GENERATIONS;
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_SECURE)) {
+                property = MKSettings.Secure.SYS_PROP_MK_SETTING_VERSION;
+                generationsProperty = MKSettings.Secure.SYS_PROP_MK_SETTING_GENERATIONS;
+            } else if (tableName.equals(MKDatabaseHelper.MKTableNames.TABLE_GLOBAL)) {
+                property = MKSettings.Global.SYS_PROP_MK_SETTING_VERSION;
+                generationsProperty = MKSettings.Global.SYS_PROP_MK_SETTING_GENERATIONS;
+            }
+
+            if (property != null) {
+                synchronized (mVersionLock) {
+                    // Clients read the version first, so the generations must be published
+                    // before it for them to see which buckets changed.
+                    bumpGenerations(generationsProperty, change.names == null ? null
+                            : change.names.toArray(new String[change.names.size()]));
+
+                    long version = SystemProperties.getLong(property, 0) + 1;
+                    if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
+                    SystemProperties.set(property, Long.toString(version));
+                }
+            }
+
+            for (int j = 0; j < change.uris.size(); j++) {
+                final int notifyTarget = change.uris.keyAt(j);
+                final ArraySet<Uri> uris = change.uris.valueAt(j);
+                for (int k = 0; k < uris.size(); k++) {
+                    final Uri uri = uris.valueAt(k);
+                    getContext().getContentResolver().notifyChange(uri, null, true,
+                            notifyTarget);
+                    if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the content uri of a table.
+     * @param tableName
+     * @return
+     */
+    private Uri getContentUriForTable(String tableName) {
+        if (MKDatabaseHelper.MKTableNames.TABLE_SYSTEM.equals(tableName)) {
+            return MKSettings.System.CONTENT_URI;
+        } else if (MKDatabaseHelper.MKTableNames.TABLE_SECURE.equals(tableName)) {
+            return MKSettings.Secure.CONTENT_URI;
+        } else if (MKDatabaseHelper.MKTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return MKSettings.Global.CONTENT_URI;
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
+        throw new IllegalArgumentException("Invalid table name: " + tableName);
+    }
+
+    /**
+     * Changes to a single table which are waiting to be published.
+     */
+    private static final class PendingChange {
+        private final Uri mTableUri;
+        // The changed names; null once a change with unknown names is queued
+        ArraySet<String> names = new ArraySet<String>();
+        // The distinct uris to notify per notify target. Observers match the exact item uri, so
+        // each one is notified on its own. The table uri is only added for changes with
+        // unknown names.
+        final SparseArray<ArraySet<Uri>> uris = new SparseArray<ArraySet<Uri>>();
+
+        PendingChange(Uri tableUri) {
+            mTableUri = tableUri;
+        }
+
+        void add(Uri uri, int notifyTarget, String[] changedNames) {
+            if (changedNames == null) {
+                names = null;
+            } else if (names != null) {
+                for (String name : changedNames) {
+                    if (name != null) {
+                        names.add(name);
+                    }
+                }
+            }
+
+            ArraySet<Uri> queued = uris.get(notifyTarget);
+            if (queued == null) {
+                queued = new ArraySet<Uri>();
+                uris.put(notifyTarget, queued);
+            }
+            queued.add(uri);
+            if (changedNames == null) {
+                // We can't tell which items changed, so reach observers of all of them
+                queued.add(mTableUri);
+            }
+        }
+    }
+
+    /**
+     * Bumps the generation of every bucket holding one of the changed names. Must be called with
+     * mVersionLock held.
+     * @param property The generations property of the table.
+     * @param names The names of the changed settings, or null to bump all buckets.
+     */
+    private void bumpGenerations(String property, String[] names) {
+        final int[] generations = new int[MKSettings.SettingGenerations.BUCKET_COUNT];
+        if (!MKSettings.SettingGenerations.parse(SystemProperties.get(property), generations)) {
+            Arrays.fill(generations, 0);
+        }
+
+        if (names == null) {
+            for (int bucket = 0; bucket < generations.length; bucket++) {
+                MKSettings.SettingGenerations.bump(generations, bucket);
+            }
+        } else {
+            for (String name : names) {
+                if (name != null) {
+                    MKSettings.SettingGenerations.bump(generations,
+                            MKSettings.SettingGenerations.bucketFor(name));
+                }
+            }
+        }
+
+        final String value = MKSettings.SettingGenerations.format(generations);
+        if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + value);
+        SystemProperties.set(property, value);
     }
 
     private void validateSystemSettingNameValue(String name, String value) {
@@ -862,5 +1459,117 @@ public class MKSettingsProvider extends ContentProvider {
         }
     }
 
-    // TODO Add caching
+    /**
+     * Returns the value cache for the specified table and user, creating it if needed.
+     * @param tableName
+     * @param userId
+     * @return The {@link SettingsCache} backing the table for the user
+     */
+    private SettingsCache getOrCreateCache(String tableName, int userId) {
+        if (MKDatabaseHelper.MKTableNames.TABLE_GLOBAL.equals(tableName)) {
+            return mGlobalCache;
+        }
+
+        final SparseArray<SettingsCache> caches =
+                MKDatabaseHelper.MKTableNames.TABLE_SYSTEM.equals(tableName)
+                        ? mSystemCaches : mSecureCaches;
+        synchronized (this) {
+            SettingsCache cache = caches.get(userId);
+            if (cache == null) {
+                cache = new SettingsCache(tableName);
+                caches.put(userId, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Drops all cached values for the specified table and user.
+     * @param tableName
+     * @param userId
+     */
+    private void invalidateCache(String tableName, int userId) {
+        final SettingsCache cache = getOrCreateCache(tableName, getUserIdForTable(tableName,
+                userId));
+        synchronized (cache) {
+            cache.invalidate();
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "invalidated cache [" + tableName + "] for user " + userId);
+    }
+
+    /**
+     * In-memory cache of the values of a single settings table for a single user. Values are
+     * stored as the {@link Bundle} handed back from {@link #call}, so a cache hit costs no
+     * allocation. Callers must hold the cache's monitor while evicting after a write, and while
+     * filling it with a value read from the database, which is only allowed if the generation
+     * is unchanged since before the read.
+     */
+    private static final class SettingsCache extends LruCache<String, Bundle> {
+        private final String mTableName;
+
+        // Bumped by every eviction, so readers can tell their query may have raced a write
+        private int mGeneration;
+
+        public SettingsCache(String tableName) {
+            super(MAX_CACHE_ENTRIES);
+            mTableName = tableName;
+        }
+
+        /**
+         * Caches the value of a setting, or the fact that it is unset if the value is null.
+         * Oversized values are not retained.
+         * @param name The name of the setting.
+         * @param value The value of the setting.
+         * @return The {@link Bundle} representing the value.
+         */
+        public Bundle putValue(String name, String value) {
+            final Bundle bundle = toBundle(value);
+            if (value == null || value.length() <= MAX_CACHE_ENTRY_SIZE) {
+                put(name, bundle);
+            } else {
+                remove(name);
+            }
+            return bundle;
+        }
+
+        /**
+         * Drops the cached value of a row which has just been written to the database, so the
+         * next read fetches it again. Writes to the same name may commit in one order and get
+         * here in another, so the written value itself must not be cached.
+         * @param contentValues The written name/value pair.
+         */
+        public void evict(ContentValues contentValues) {
+            final String name = contentValues.getAsString(Settings.NameValueTable.NAME);
+            if (name == null) {
+                Log.w(TAG, "null name evicting from settings cache [" + mTableName + "]");
+                return;
+            }
+            mGeneration++;
+            remove(name);
+        }
+
+        /**
+         * Drops every cached value, after a write which may have touched any row.
+         */
+        public void invalidate() {
+            mGeneration++;
+            evictAll();
+        }
+
+        /**
+         * @return A counter which changes whenever a value is evicted.
+         */
+        public int getGeneration() {
+            return mGeneration;
+        }
+
+        /**
+         * @param value The value of a setting, or null if it is unset.
+         * @return The {@link Bundle} handed back from {@link #call} for the value.
+         */
+        public static Bundle toBundle(String value) {
+            return value == null ? NULL_SETTING
+                    : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+        }
+    }
 }
@@ -20,6 +20,8 @@ import android.content.Context;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Range;
 
@@ -31,8 +33,10 @@ import mokee.hardware.HSIC;
 import java.io.UnsupportedEncodingException;
 import java.lang.IllegalArgumentException;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -192,6 +196,20 @@ public final class MKHardwareManager {
 
     private static MKHardwareManager sMKHardwareManagerInstance;
 
+    /**
+     * System property bumped by MKHardwareService whenever the state of the hardware
+     * changes, or the service (re)starts
+     *
+     * @hide
+     */
+    public static final String SYS_PROP_MK_HARDWARE_VERSION = "sys.mk_hardware_version";
+
+    // What this process knows about the hardware, valid while the version matches
+    private static volatile Snapshot sSnapshot;
+
+    // FEATURE_* field names to their values, for the String variant of isSupported
+    private static ArrayMap<String, Integer> sFeatureNames;
+
     /**
      * @hide to prevent subclassing from outside of the framework
      */
@@ -238,16 +256,74 @@ public final class MKHardwareManager {
     }
 
     /**
-     * @return the supported features bitmask
+     * Capabilities of the hardware as seen by this process. The feature set and
+     * ranges of a device don't change at runtime, so these are only fetched
+     * once. Feature states are always read from the service.
      */
-    public int getSupportedFeatures() {
+    private static final class Snapshot {
+        final long version;
+        final int supportedFeatures;
+
+        // guarded by this
+        Range<Integer> colorBalanceRange;
+        List<Range<Float>> pictureAdjustmentRanges;
+        // whole descriptors as returned by the service, only the limits are used
+        int[] calibrationLimits;
+        int[] vibratorLimits;
+
+        Snapshot(long version, int supportedFeatures) {
+            this.version = version;
+            this.supportedFeatures = supportedFeatures;
+        }
+
+        /**
+         * Carry over what can't change at runtime
+         */
+        Snapshot(long version, Snapshot old) {
+            this.version = version;
+            this.supportedFeatures = old.supportedFeatures;
+            synchronized (old) {
+                this.colorBalanceRange = old.colorBalanceRange;
+                this.pictureAdjustmentRanges = old.pictureAdjustmentRanges;
+                this.calibrationLimits = old.calibrationLimits;
+                this.vibratorLimits = old.vibratorLimits;
+            }
+        }
+    }
+
+    /**
+     * @return an up-to-date snapshot, or null if the service can't be reached
+     */
+    private Snapshot getSnapshot() {
+        // Read the version before fetching, so a concurrent change makes the
+        // next call fetch again
+        final long version = SystemProperties.getLong(SYS_PROP_MK_HARDWARE_VERSION, 0);
+        Snapshot snapshot = sSnapshot;
+        if (snapshot != null) {
+            if (snapshot.version != version) {
+                snapshot = new Snapshot(version, snapshot);
+                sSnapshot = snapshot;
+            }
+            return snapshot;
+        }
+
         try {
             if (checkService()) {
-                return sService.getSupportedFeatures();
+                snapshot = new Snapshot(version, sService.getSupportedFeatures());
+                sSnapshot = snapshot;
+                return snapshot;
             }
         } catch (RemoteException e) {
         }
-        return 0;
+        return null;
+    }
+
+    /**
+     * @return the supported features bitmask
+     */
+    public int getSupportedFeatures() {
+        final Snapshot snapshot = getSnapshot();
+        return snapshot != null ? snapshot.supportedFeatures : 0;
     }
 
     /**
@@ -270,16 +346,30 @@ public final class MKHardwareManager {
         if (!feature.startsWith("FEATURE_")) {
             return false;
         }
-        try {
-            Field f = getClass().getField(feature);
-            if (f != null) {
-                return isSupported((int) f.get(null));
-            }
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            Log.d(TAG, e.getMessage(), e);
+        final Integer value = getFeatureNames().get(feature);
+        if (value == null) {
+            Log.d(TAG, "No such feature " + feature);
+            return false;
         }
+        return isSupported(value);
+    }
 
-        return false;
+    private static synchronized ArrayMap<String, Integer> getFeatureNames() {
+        if (sFeatureNames == null) {
+            final ArrayMap<String, Integer> names = new ArrayMap<String, Integer>();
+            for (Field f : MKHardwareManager.class.getFields()) {
+                if (f.getName().startsWith("FEATURE_") && f.getType() == int.class
+                        && Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        names.put(f.getName(), f.getInt(null));
+                    } catch (IllegalAccessException e) {
+                        Log.d(TAG, e.getMessage(), e);
+                    }
+                }
+            }
+            sFeatureNames = names;
+        }
+        return sFeatureNames;
     }
     /**
      * Determine if the given feature is enabled or disabled.
@@ -295,6 +385,7 @@ public final class MKHardwareManager {
             throw new IllegalArgumentException(feature + " is not a boolean");
         }
 
+        // Not cached: the HAL or the kernel may change feature states on their own
         try {
             if (checkService()) {
                 return sService.get(feature);
@@ -367,6 +458,29 @@ public final class MKHardwareManager {
         return null;
     }
 
+    /**
+     * The limits never change, so the descriptor is only fetched once for all of them
+     */
+    private int getVibratorLimit(int idx) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return 0;
+        }
+        synchronized (snapshot) {
+            if (snapshot.vibratorLimits != null) {
+                return getArrayValue(snapshot.vibratorLimits, idx, 0);
+            }
+        }
+
+        final int[] arr = getVibratorIntensityArray();
+        if (arr != null && arr.length > VIBRATOR_WARNING_INDEX) {
+            synchronized (snapshot) {
+                snapshot.vibratorLimits = arr;
+            }
+        }
+        return getArrayValue(arr, idx, 0);
+    }
+
     /**
      * @return The current vibrator intensity.
      */
@@ -378,28 +492,28 @@ public final class MKHardwareManager {
      * @return The default vibrator intensity.
      */
     public int getVibratorDefaultIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_DEFAULT_INDEX, 0);
+        return getVibratorLimit(VIBRATOR_DEFAULT_INDEX);
     }
 
     /**
      * @return The minimum vibrator intensity.
      */
     public int getVibratorMinIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_MIN_INDEX, 0);
+        return getVibratorLimit(VIBRATOR_MIN_INDEX);
     }
 
     /**
      * @return The maximum vibrator intensity.
      */
     public int getVibratorMaxIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_MAX_INDEX, 0);
+        return getVibratorLimit(VIBRATOR_MAX_INDEX);
     }
 
     /**
      * @return The warning threshold vibrator intensity.
      */
     public int getVibratorWarningIntensity() {
-        return getArrayValue(getVibratorIntensityArray(), VIBRATOR_WARNING_INDEX, 0);
+        return getVibratorLimit(VIBRATOR_WARNING_INDEX);
     }
 
     /**
@@ -455,6 +569,29 @@ public final class MKHardwareManager {
         return null;
     }
 
+    /**
+     * The limits never change, so the descriptor is only fetched once for all of them
+     */
+    private int getDisplayColorCalibrationLimit(int idx) {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return 0;
+        }
+        synchronized (snapshot) {
+            if (snapshot.calibrationLimits != null) {
+                return getArrayValue(snapshot.calibrationLimits, idx, 0);
+            }
+        }
+
+        final int[] arr = getDisplayColorCalibrationArray();
+        if (arr != null && arr.length > COLOR_CALIBRATION_MAX_INDEX) {
+            synchronized (snapshot) {
+                snapshot.calibrationLimits = arr;
+            }
+        }
+        return getArrayValue(arr, idx, 0);
+    }
+
     /**
      * @return the current RGB calibration, where int[0] = R, int[1] = G, int[2] = B.
      */
@@ -470,21 +607,21 @@ public final class MKHardwareManager {
      * @return the default value for all colors
      */
     public int getDisplayColorCalibrationDefault() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_DEFAULT_INDEX, 0);
+        return getDisplayColorCalibrationLimit(COLOR_CALIBRATION_DEFAULT_INDEX);
     }
 
     /**
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMin() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MIN_INDEX, 0);
+        return getDisplayColorCalibrationLimit(COLOR_CALIBRATION_MIN_INDEX);
     }
 
     /**
      * @return The minimum value for all colors
      */
     public int getDisplayColorCalibrationMax() {
-        return getArrayValue(getDisplayColorCalibrationArray(), COLOR_CALIBRATION_MAX_INDEX, 0);
+        return getDisplayColorCalibrationLimit(COLOR_CALIBRATION_MAX_INDEX);
     }
 
     /**
@@ -886,16 +1023,26 @@ public final class MKHardwareManager {
      * @return the available range for color temperature adjustments
      */
     public Range<Integer> getColorBalanceRange() {
-        int min = 0;
-        int max = 0;
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return new Range<Integer>(0, 0);
+        }
+        synchronized (snapshot) {
+            if (snapshot.colorBalanceRange != null) {
+                return snapshot.colorBalanceRange;
+            }
+        }
+
         try {
-            if (checkService()) {
-                min = sService.getColorBalanceMin();
-                max = sService.getColorBalanceMax();
+            final Range<Integer> range = new Range<Integer>(
+                    sService.getColorBalanceMin(), sService.getColorBalanceMax());
+            synchronized (snapshot) {
+                snapshot.colorBalanceRange = range;
             }
+            return range;
         } catch (RemoteException e) {
         }
-        return new Range<Integer>(min, max);
+        return new Range<Integer>(0, 0);
     }
 
     /**
@@ -980,18 +1127,31 @@ public final class MKHardwareManager {
      * @return range list
      */
     public List<Range<Float>> getPictureAdjustmentRanges() {
+        final Snapshot snapshot = getSnapshot();
+        if (snapshot == null) {
+            return null;
+        }
+        synchronized (snapshot) {
+            if (snapshot.pictureAdjustmentRanges != null) {
+                return snapshot.pictureAdjustmentRanges;
+            }
+        }
+
         try {
-            if (checkService()) {
-                float[] ranges = sService.getPictureAdjustmentRanges();
-                if (ranges.length > 7) {
-                    return Arrays.asList(new Range<Float>(ranges[0], ranges[1]),
-                            new Range<Float>(ranges[2], ranges[3]),
-                            new Range<Float>(ranges[4], ranges[5]),
-                            new Range<Float>(ranges[6], ranges[7]),
-                            (ranges.length > 9 ?
-                                    new Range<Float>(ranges[8], ranges[9]) :
-                                    new Range<Float>(0.0f, 0.0f)));
+            float[] ranges = sService.getPictureAdjustmentRanges();
+            if (ranges != null && ranges.length > 7) {
+                final List<Range<Float>> list = Collections.unmodifiableList(Arrays.asList(
+                        new Range<Float>(ranges[0], ranges[1]),
+                        new Range<Float>(ranges[2], ranges[3]),
+                        new Range<Float>(ranges[4], ranges[5]),
+                        new Range<Float>(ranges[6], ranges[7]),
+                        (ranges.length > 9 ?
+                                new Range<Float>(ranges[8], ranges[9]) :
+                                new Range<Float>(0.0f, 0.0f))));
+                synchronized (snapshot) {
+                    snapshot.pictureAdjustmentRanges = list;
                 }
+                return list;
             }
         } catch (RemoteException e) {
         }
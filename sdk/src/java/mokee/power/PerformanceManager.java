@@ -279,6 +279,26 @@ public class PerformanceManager {
         return ret;
     }
 
+    /**
+     * Gets the profile residency, profile switch latency and per-uid boost
+     * statistics collected since boot.
+     * Requires the {@link mokee.platform.Manifest.permission#PERFORMANCE_ACCESS} permission.
+     *
+     * Returns null if the service is not available
+     * @hide
+     */
+    public PerformanceStats getPerformanceStats() {
+        PerformanceStats ret = null;
+        try {
+            if (checkService()) {
+                ret = sService.getPerformanceStats();
+            }
+        } catch (RemoteException e) {
+            // nothing
+        }
+        return ret;
+    }
+
     /**
      * Gets a set, sorted by weight, of all supported power profiles
      *
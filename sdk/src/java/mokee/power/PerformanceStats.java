@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The MoKee Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mokee.power;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import mokee.os.Concierge;
+
+/**
+ * Snapshot of the statistics kept by the PerformanceManager since boot:
+ * how long each profile was active, how long switching to it took, and
+ * how many CPU boosts each uid asked for.
+ *
+ * @hide
+ */
+public class PerformanceStats implements Parcelable {
+
+    private final int[] mProfileIds;
+    private final long[] mResidencyMillis;
+    private final int[] mSwitchCounts;
+    private final long[] mSwitchLatencyTotalMicros;
+    private final long[] mSwitchLatencyMaxMicros;
+
+    private final int[] mBoostUids;
+    private final int[] mBoostRequests;
+    private final int[] mBoostHints;
+
+    /**
+     * Arrays are indexed in parallel, by profile for the first five and by
+     * uid for the last three.
+     */
+    public PerformanceStats(int[] profileIds, long[] residencyMillis, int[] switchCounts,
+                            long[] switchLatencyTotalMicros, long[] switchLatencyMaxMicros,
+                            int[] boostUids, int[] boostRequests, int[] boostHints) {
+        mProfileIds = profileIds;
+        mResidencyMillis = residencyMillis;
+        mSwitchCounts = switchCounts;
+        mSwitchLatencyTotalMicros = switchLatencyTotalMicros;
+        mSwitchLatencyMaxMicros = switchLatencyMaxMicros;
+        mBoostUids = boostUids;
+        mBoostRequests = boostRequests;
+        mBoostHints = boostHints;
+    }
+
+    private PerformanceStats(Parcel in) {
+        Concierge.ParcelInfo parcelInfo = Concierge.receiveParcel(in);
+
+        mProfileIds = in.createIntArray();
+        mResidencyMillis = in.createLongArray();
+        mSwitchCounts = in.createIntArray();
+        mSwitchLatencyTotalMicros = in.createLongArray();
+        mSwitchLatencyMaxMicros = in.createLongArray();
+        mBoostUids = in.createIntArray();
+        mBoostRequests = in.createIntArray();
+        mBoostHints = in.createIntArray();
+
+        parcelInfo.complete();
+    }
+
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return ids of the profiles which have statistics
+     */
+    public int[] getProfileIds() {
+        return mProfileIds.clone();
+    }
+
+    /**
+     * Time the profile was applied, including the current stretch if it is active.
+     *
+     * @return time in milliseconds
+     */
+    public long getResidencyMillis(int profile) {
+        final int i = indexOf(mProfileIds, profile);
+        return i < 0 ? 0 : mResidencyMillis[i];
+    }
+
+    /**
+     * @return how many times the profile was switched to
+     */
+    public int getSwitchCount(int profile) {
+        final int i = indexOf(mProfileIds, profile);
+        return i < 0 ? 0 : mSwitchCounts[i];
+    }
+
+    /**
+     * Average time from requesting the profile until the PowerHAL applied it.
+     *
+     * @return time in microseconds
+     */
+    public long getAverageSwitchLatencyMicros(int profile) {
+        final int i = indexOf(mProfileIds, profile);
+        return i < 0 || mSwitchCounts[i] == 0 ? 0 :
+                mSwitchLatencyTotalMicros[i] / mSwitchCounts[i];
+    }
+
+    /**
+     * Longest time from requesting the profile until the PowerHAL applied it.
+     *
+     * @return time in microseconds
+     */
+    public long getMaxSwitchLatencyMicros(int profile) {
+        final int i = indexOf(mProfileIds, profile);
+        return i < 0 ? 0 : mSwitchLatencyMaxMicros[i];
+    }
+
+    /**
+     * @return uids which requested CPU boosts
+     */
+    public int[] getBoostUids() {
+        return mBoostUids.clone();
+    }
+
+    /**
+     * @return how many CPU boosts the uid requested
+     */
+    public int getBoostRequestCount(int uid) {
+        final int i = indexOf(mBoostUids, uid);
+        return i < 0 ? 0 : mBoostRequests[i];
+    }
+
+    /**
+     * @return how many of the uid's requests had to be passed on to the PowerHAL
+     */
+    public int getBoostHintCount(int uid) {
+        final int i = indexOf(mBoostUids, uid);
+        return i < 0 ? 0 : mBoostHints[i];
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        Concierge.ParcelInfo parcelInfo = Concierge.prepareParcel(dest);
+
+        dest.writeIntArray(mProfileIds);
+        dest.writeLongArray(mResidencyMillis);
+        dest.writeIntArray(mSwitchCounts);
+        dest.writeLongArray(mSwitchLatencyTotalMicros);
+        dest.writeLongArray(mSwitchLatencyMaxMicros);
+        dest.writeIntArray(mBoostUids);
+        dest.writeIntArray(mBoostRequests);
+        dest.writeIntArray(mBoostHints);
+
+        parcelInfo.complete();
+    }
+
+    public static final Creator<PerformanceStats> CREATOR = new Creator<PerformanceStats>() {
+        @Override
+        public PerformanceStats createFromParcel(Parcel in) {
+            return new PerformanceStats(in);
+        }
+
+        @Override
+        public PerformanceStats[] newArray(int size) {
+            return new PerformanceStats[size];
+        }
+    };
+}
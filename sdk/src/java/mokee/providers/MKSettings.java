@@ -17,8 +17,6 @@
 
 package mokee.providers;
 
-import com.android.internal.util.ArrayUtils;
-
 import android.content.ContentResolver;
 import android.content.IContentProvider;
 import android.database.Cursor;
@@ -30,18 +28,19 @@ import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.AndroidException;
-import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
-
-import com.android.internal.util.ArrayUtils;
+import android.util.SparseArray;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -116,6 +115,48 @@ public final class MKSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method to read multiple keys from 'system' table
+     */
+    public static final String CALL_METHOD_GET_MULTI_SYSTEM = "GET_MULTI_system";
+
+    /**
+     * @hide - Private call() method to read multiple keys from 'secure' table
+     */
+    public static final String CALL_METHOD_GET_MULTI_SECURE = "GET_MULTI_secure";
+
+    /**
+     * @hide - Private call() method to read multiple keys from 'global' table
+     */
+    public static final String CALL_METHOD_GET_MULTI_GLOBAL = "GET_MULTI_global";
+
+    /**
+     * @hide - Private call() method to atomically write multiple keys to 'system' table
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SYSTEM = "PUT_MULTI_system";
+
+    /**
+     * @hide - Private call() method to atomically write multiple keys to 'secure' table
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SECURE = "PUT_MULTI_secure";
+
+    /**
+     * @hide - Private call() method to atomically write multiple keys to 'global' table
+     */
+    public static final String CALL_METHOD_PUT_MULTI_GLOBAL = "PUT_MULTI_global";
+
+    /**
+     * @hide - String array argument extra holding the names of a multi-key call()-based request
+     * or reply. A multi-key get without names returns the whole table.
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - String array argument extra holding the values of a multi-key call()-based request
+     * or reply, parallel to {@link #CALL_METHOD_NAMES_KEY}.
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
     /**
      * @hide - Private call() method on MKSettingsProvider to migrate MK settings
      */
@@ -128,18 +169,122 @@ public final class MKSettings {
 
     // endregion
 
+    /**
+     * @hide - Per-bucket generation counters for a settings table, published by MKSettingsProvider
+     * in a system property next to the table version. Every write bumps the counter of the bucket
+     * its name hashes to, which lets {@link NameValueCache} evict only the names that may have
+     * changed instead of the whole table.
+     */
+    public static final class SettingGenerations {
+        public static final int BUCKET_COUNT = 16;
+
+        // Each counter is encoded with a fixed number of base 36 digits, so the whole set fits
+        // in a single system property value.
+        private static final int DIGITS = 5;
+        private static final int RADIX = 36;
+        private static final int MODULUS = 60466176; // RADIX ^ DIGITS
+
+        private SettingGenerations() {
+            // no instances
+        }
+
+        /**
+         * @param name The name of a setting.
+         * @return The bucket the name belongs to.
+         */
+        public static int bucketFor(String name) {
+            return (name.hashCode() & 0x7fffffff) % BUCKET_COUNT;
+        }
+
+        /**
+         * Decodes the generations published in a system property.
+         * @param value The property value.
+         * @param out Array of at least {@link #BUCKET_COUNT} entries receiving the generations.
+         * @return Whether the value was well formed.
+         */
+        public static boolean parse(String value, int[] out) {
+            if (value == null || value.length() != BUCKET_COUNT * DIGITS) {
+                return false;
+            }
+            for (int bucket = 0, pos = 0; bucket < BUCKET_COUNT; bucket++) {
+                int generation = 0;
+                for (int i = 0; i < DIGITS; i++, pos++) {
+                    final int digit = Character.digit(value.charAt(pos), RADIX);
+                    if (digit < 0) {
+                        return false;
+                    }
+                    generation = generation * RADIX + digit;
+                }
+                out[bucket] = generation;
+            }
+            return true;
+        }
+
+        /**
+         * Increments the generation of a bucket, wrapping around at the encodable limit.
+         * @param generations The generations to modify.
+         * @param bucket The bucket to bump.
+         */
+        public static void bump(int[] generations, int bucket) {
+            generations[bucket] = (generations[bucket] + 1) % MODULUS;
+        }
+
+        /**
+         * Encodes generations for publishing in a system property.
+         * @param generations The generations to encode.
+         * @return The property value.
+         */
+        public static String format(int[] generations) {
+            final char[] chars = new char[BUCKET_COUNT * DIGITS];
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                int generation = generations[bucket];
+                for (int i = DIGITS - 1; i >= 0; i--) {
+                    chars[bucket * DIGITS + i] = Character.forDigit(generation % RADIX, RADIX);
+                    generation /= RADIX;
+                }
+            }
+            return new String(chars);
+        }
+    }
+
     // Thread-safe.
     private static class NameValueCache {
         private final String mVersionSystemProperty;
+        private final String mGenerationsSystemProperty;
         private final Uri mUri;
 
         private static final String[] SELECT_VALUE =
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Stands in for null values, which ConcurrentHashMap can't hold -- negative caching
+        private static final Object NULL_VALUE = new Object();
+
+        /**
+         * The cached values of a single user. Reads need no lock; all other accesses, and any
+         * writes, must hold the enclosing NameValueCache.
+         */
+        private static final class UserValues {
+            final ConcurrentHashMap<String, Object> values =
+                    new ConcurrentHashMap<String, Object>();
+            // Whether values holds the whole table, so that missing names are known to be unset
+            volatile boolean complete = false;
+        }
+
+        // Copy-on-write, so readers may use it without a lock. Replaced while holding 'this'.
+        private volatile SparseArray<UserValues> mUserValues = new SparseArray<UserValues>();
+
+        // The table version and per-bucket generations the cached values correspond to.
+        // Only modified while holding 'this'.
+        private volatile long mValuesVersion = 0;
+        private final int[] mGenerations = new int[SettingGenerations.BUCKET_COUNT];
+        private final int[] mNewGenerations = new int[SettingGenerations.BUCKET_COUNT];
+        private boolean mGenerationsValid = false;
+
+        // Counts writes made through this cache. The provider publishes changes after a short
+        // delay, so our own writes are evicted locally to keep reads consistent with them.
+        // Only modified while holding 'this'.
+        private volatile int mLocalWrites = 0;
 
         // Initially null; set lazily and held forever.  Synchronized on 'this'.
         private IContentProvider mContentProvider = null;
@@ -148,13 +293,19 @@ public final class MKSettings {
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallGetMultiCommand;
+        private final String mCallSetMultiCommand;
 
-        public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
+        public NameValueCache(String versionSystemProperty, String generationsSystemProperty,
+                Uri uri, String getCommand, String setCommand, String getMultiCommand,
+                String setMultiCommand) {
             mVersionSystemProperty = versionSystemProperty;
+            mGenerationsSystemProperty = generationsSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallGetMultiCommand = getMultiCommand;
+            mCallSetMultiCommand = setMultiCommand;
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
@@ -168,6 +319,141 @@ public final class MKSettings {
             return cp;
         }
 
+        /**
+         * Whether values for a user id may be cached. Pseudo ids such as USER_CURRENT are
+         * resolved by the provider on every call, so their values can change with a user
+         * switch without any version bump and are never cached.
+         */
+        private static boolean isCacheableUser(int userId) {
+            return userId >= 0;
+        }
+
+        /**
+         * Returns the cached values for a user, or null if nothing is cached for the user.
+         * Lock-free.
+         */
+        private UserValues peekUserValues(int userId) {
+            return isCacheableUser(userId) ? mUserValues.get(userId) : null;
+        }
+
+        /**
+         * Returns the cached values for a user, creating them if needed. Must be called with
+         * 'this' held.
+         */
+        private UserValues getOrCreateUserValuesLocked(int userId) {
+            UserValues userValues = mUserValues.get(userId);
+            if (userValues == null) {
+                final SparseArray<UserValues> newUserValues = mUserValues.clone();
+                userValues = new UserValues();
+                newUserValues.put(userId, userValues);
+                mUserValues = newUserValues;
+            }
+            return userValues;
+        }
+
+        /**
+         * Brings the cache up to date with the table version. Only the buckets whose generation
+         * changed are evicted; if the generations can't be read, everything is.
+         * @param newValuesVersion The current version of the table.
+         */
+        private void ensureUpToDate(long newValuesVersion) {
+            if (mValuesVersion == newValuesVersion) {
+                return;
+            }
+
+            synchronized (this) {
+                if (mValuesVersion == newValuesVersion) {
+                    return;
+                }
+
+                final boolean haveGenerations = mGenerationsValid && SettingGenerations.parse(
+                        SystemProperties.get(mGenerationsSystemProperty), mNewGenerations);
+                final SparseArray<UserValues> userValues = mUserValues;
+                int evicted = 0;
+                for (int i = 0; i < userValues.size(); i++) {
+                    final UserValues values = userValues.valueAt(i);
+                    if (!haveGenerations) {
+                        evicted += values.values.size();
+                        values.values.clear();
+                    } else {
+                        final Iterator<String> it = values.values.keySet().iterator();
+                        while (it.hasNext()) {
+                            final int bucket = SettingGenerations.bucketFor(it.next());
+                            if (mGenerations[bucket] != mNewGenerations[bucket]) {
+                                it.remove();
+                                evicted++;
+                            }
+                        }
+                    }
+                    values.complete = false;
+                }
+
+                if (LOCAL_LOGV) {
+                    Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                            + newValuesVersion + " != cached " + mValuesVersion + ", evicted "
+                            + evicted + (haveGenerations ? "" : " (full)"));
+                }
+
+                if (haveGenerations) {
+                    java.lang.System.arraycopy(mNewGenerations, 0, mGenerations, 0,
+                            mGenerations.length);
+                } else {
+                    mGenerationsValid = SettingGenerations.parse(
+                            SystemProperties.get(mGenerationsSystemProperty), mGenerations);
+                }
+                mValuesVersion = newValuesVersion;
+            }
+        }
+
+        /**
+         * Checks whether values fetched from the provider may be cached. They may not if the
+         * table changed since the fetch started, as they may already be stale. Must be called
+         * with 'this' held.
+         * @param requestVersion The table version read before the fetch.
+         * @param requestGenerations The generations property read before the fetch.
+         * @param requestLocalWrites The local write count read before the fetch.
+         * @return Whether the values may be cached.
+         */
+        private boolean canCacheLocked(long requestVersion, String requestGenerations,
+                int requestLocalWrites) {
+            final long currentVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            // A write bumps the generations before the version, so comparing the generations
+            // as well catches writes whose version bump is still in flight.
+            return currentVersion == requestVersion && mValuesVersion == requestVersion
+                    && mLocalWrites == requestLocalWrites
+                    && TextUtils.equals(requestGenerations,
+                            SystemProperties.get(mGenerationsSystemProperty));
+        }
+
+        /**
+         * Evicts names which were just written through this cache.
+         * @param userId The user the names were written for.
+         * @param names The written names.
+         */
+        private void onLocalWrite(int userId, String... names) {
+            synchronized (this) {
+                mLocalWrites++;
+                if (isCacheableUser(userId)) {
+                    evictLocked(mUserValues.get(userId), names);
+                } else {
+                    // The provider resolved the pseudo id, so we don't know which user it hit
+                    final SparseArray<UserValues> userValues = mUserValues;
+                    for (int i = 0; i < userValues.size(); i++) {
+                        evictLocked(userValues.valueAt(i), names);
+                    }
+                }
+            }
+        }
+
+        private static void evictLocked(UserValues userValues, String[] names) {
+            if (userValues != null) {
+                for (String name : names) {
+                    userValues.values.remove(name);
+                }
+                userValues.complete = false;
+            }
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
@@ -184,6 +470,7 @@ public final class MKSettings {
                 arg.putInt(CALL_METHOD_USER_KEY, userId);
                 IContentProvider cp = lazyGetProvider(cr);
                 cp.call(cr.getPackageName(), mCallSetCommand, name, arg);
+                onLocalWrite(userId, name);
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
                 return false;
@@ -191,6 +478,154 @@ public final class MKSettings {
             return true;
         }
 
+        /**
+         * Atomically puts several name/value pairs into the content provider for the specified
+         * user in a single transaction, which results in a single change notification.
+         * @param cr The content resolver to use.
+         * @param values The name/value pairs to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            final int size = values.size();
+            if (size == 0) {
+                return true;
+            }
+
+            final String[] names = new String[size];
+            final String[] newValues = new String[size];
+            int i = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                names[i] = entry.getKey();
+                newValues[i] = entry.getValue();
+                i++;
+            }
+
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, newValues);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), mCallSetMultiCommand, null, arg);
+                onLocalWrite(userId, names);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + size + " keys in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Gets the string values of several names in a single transaction. Names which are
+         * already cached are served from the cache; the rest are fetched together.
+         * @param cr Content resolver to use for names which are not cached.
+         * @param names The names of the keys to search for, or null to fetch the whole table.
+         * @param userId The user id of the cache to look in.
+         * @return A map from each requested name to its value, which is null if the name is
+         *         not present, or null on failure.
+         */
+        public Map<String, String> getStringsForUser(ContentResolver cr, String[] names,
+                final int userId) {
+            final long requestVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            ensureUpToDate(requestVersion);
+
+            final Map<String, String> result = new HashMap<String, String>();
+            String[] missing = names;
+
+            final UserValues userValues = peekUserValues(userId);
+            if (userValues != null) {
+                if (names == null) {
+                    if (userValues.complete) {
+                        for (Map.Entry<String, Object> entry : userValues.values.entrySet()) {
+                            final Object value = entry.getValue();
+                            result.put(entry.getKey(),
+                                    value == NULL_VALUE ? null : (String) value);
+                        }
+                        return result;
+                    }
+                } else {
+                    final boolean complete = userValues.complete;
+                    ArrayList<String> uncached = null;
+                    for (String name : names) {
+                        final Object value = userValues.values.get(name);
+                        if (value != null) {
+                            result.put(name, value == NULL_VALUE ? null : (String) value);
+                        } else if (complete) {
+                            result.put(name, null);
+                        } else {
+                            if (uncached == null) {
+                                uncached = new ArrayList<String>();
+                            }
+                            uncached.add(name);
+                        }
+                    }
+                    if (uncached == null) {
+                        return result;
+                    }
+                    missing = uncached.toArray(new String[uncached.size()]);
+                }
+            }
+
+            final String requestGenerations = SystemProperties.get(mGenerationsSystemProperty);
+            final int requestLocalWrites = mLocalWrites;
+            try {
+                Bundle args = new Bundle();
+                if (missing != null) {
+                    args.putStringArray(CALL_METHOD_NAMES_KEY, missing);
+                }
+                if (userId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                IContentProvider cp = lazyGetProvider(cr);
+                Bundle b = cp.call(cr.getPackageName(), mCallGetMultiCommand, null, args);
+                if (b == null) {
+                    Log.w(TAG, "Can't get keys from " + mUri);
+                    return null;
+                }
+
+                final String[] replyNames = b.getStringArray(CALL_METHOD_NAMES_KEY);
+                final String[] replyValues = b.getStringArray(CALL_METHOD_VALUES_KEY);
+                if (replyNames == null || replyValues == null
+                        || replyNames.length != replyValues.length) {
+                    Log.w(TAG, "Malformed multi-key reply from " + mUri);
+                    return null;
+                }
+                if (missing != null) {
+                    // Names absent from the reply are unset
+                    for (String name : missing) {
+                        result.put(name, null);
+                    }
+                }
+                for (int i = 0; i < replyNames.length; i++) {
+                    result.put(replyNames[i], replyValues[i]);
+                }
+
+                synchronized (this) {
+                    if (isCacheableUser(userId)
+                            && canCacheLocked(requestVersion, requestGenerations,
+                                    requestLocalWrites)) {
+                        final UserValues values = getOrCreateUserValuesLocked(userId);
+                        if (missing == null) {
+                            values.values.clear();
+                        }
+                        for (Map.Entry<String, String> entry : result.entrySet()) {
+                            final String value = entry.getValue();
+                            values.values.put(entry.getKey(), value == null ? NULL_VALUE : value);
+                        }
+                        if (missing == null) {
+                            values.complete = true;
+                        }
+                    }
+                }
+                return result;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't get keys from " + mUri, e);
+                return null;
+            }
+        }
+
         /**
          * Gets a string value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
@@ -201,32 +636,24 @@ public final class MKSettings {
          * @return The string value of the specified key.
          */
         public String getStringForUser(ContentResolver cr, String name, final int userId) {
-            final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
-
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
-
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
-
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
-                    }
+            final long requestVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+            ensureUpToDate(requestVersion);
+
+            // Every real user's settings data uses a client-side cache; this path takes no lock
+            final UserValues userValues = peekUserValues(userId);
+            if (userValues != null) {
+                final Object cached = userValues.values.get(name);
+                if (cached != null) {
+                    // Could be null, that's OK -- negative caching
+                    return cached == NULL_VALUE ? null : (String) cached;
+                }
+                if (userValues.complete) {
+                    return null;  // The whole table is cached and the name isn't in it
                 }
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
-                        + " by user " + UserHandle.myUserId() + " so skipping cache");
             }
 
+            final String requestGenerations = SystemProperties.get(mGenerationsSystemProperty);
+            final int requestLocalWrites = mLocalWrites;
             IContentProvider cp = lazyGetProvider(cr);
 
             // Try the fast path first, not using query().  If this
@@ -236,23 +663,15 @@ public final class MKSettings {
             if (mCallGetCommand != null) {
                 try {
                     Bundle args = null;
-                    if (!isSelf) {
+                    if (userId != UserHandle.myUserId()) {
                         args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userId);
                     }
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
                     if (b != null) {
                         String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
-                        } else {
-                            if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
-                                    + " by " + UserHandle.myUserId()
-                                    + " so not updating cache");
-                        }
+                        putValue(userId, name, value, requestVersion, requestGenerations,
+                                requestLocalWrites);
                         return value;
                     }
                     // If the response Bundle is null, we fall through
@@ -273,8 +692,10 @@ public final class MKSettings {
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
+                // query() always reads the calling user's table
+                if (userId == UserHandle.myUserId()) {
+                    putValue(userId, name, value, requestVersion, requestGenerations,
+                            requestLocalWrites);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
@@ -288,6 +709,19 @@ public final class MKSettings {
                 if (c != null) c.close();
             }
         }
+
+        private void putValue(int userId, String name, String value, long requestVersion,
+                String requestGenerations, int requestLocalWrites) {
+            if (!isCacheableUser(userId)) {
+                return;
+            }
+            synchronized (this) {
+                if (canCacheLocked(requestVersion, requestGenerations, requestLocalWrites)) {
+                    getOrCreateUserValuesLocked(userId).values.put(name,
+                            value == null ? NULL_VALUE : value);
+                }
+            }
+        }
     }
 
     // region Validators
@@ -334,15 +768,15 @@ public final class MKSettings {
     };
 
     private static final class DiscreteValueValidator implements Validator {
-        private final String[] mValues;
+        private final ArraySet<String> mValues;
 
         public DiscreteValueValidator(String[] values) {
-            mValues = values;
+            mValues = new ArraySet<String>(Arrays.asList(values));
         }
 
         @Override
         public boolean validate(String value) {
-            return ArrayUtils.contains(mValues, value);
+            return mValues.contains(value);
         }
     }
 
@@ -433,11 +867,17 @@ public final class MKSettings {
 
         public static final String SYS_PROP_MK_SETTING_VERSION = "sys.mk_settings_system_version";
 
+        /** @hide */
+        public static final String SYS_PROP_MK_SETTING_GENERATIONS = "sys.mk_settings_system_gens";
+
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 SYS_PROP_MK_SETTING_VERSION,
+                SYS_PROP_MK_SETTING_GENERATIONS,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_GET_MULTI_SYSTEM,
+                CALL_METHOD_PUT_MULTI_SYSTEM);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
@@ -539,6 +979,87 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database with a single transaction.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return a map from each name to its value, which is null if not present, or null on
+         *         database errors
+         * @hide
+         */
+        public static Map<String, String> getStrings(ContentResolver resolver, String... names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                String[] names, int userId) {
+            ArrayList<String> moved = null;
+            if (names != null) {
+                for (String name : names) {
+                    if (MOVED_TO_SECURE.contains(name)) {
+                        if (moved == null) {
+                            moved = new ArrayList<String>();
+                        }
+                        moved.add(name);
+                    }
+                }
+            }
+            if (moved == null) {
+                return sNameValueCache.getStringsForUser(resolver, names, userId);
+            }
+
+            Log.w(TAG, "Settings " + moved + " have moved from MKSettings.System"
+                    + " to MKSettings.Secure, values are unchanged.");
+            ArrayList<String> remaining = new ArrayList<String>(Arrays.asList(names));
+            remaining.removeAll(moved);
+            Map<String, String> result = sNameValueCache.getStringsForUser(resolver,
+                    remaining.toArray(new String[remaining.size()]), userId);
+            if (result != null) {
+                for (String name : moved) {
+                    result.put(name, MKSettings.Secure.getStringForUser(resolver, name, userId));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Fetch the whole table into the local cache with a single transaction, so that
+         * subsequent lookups for the calling user are served without IPC until the table changes.
+         * @param resolver to access the database with
+         * @return true if the table was fetched, false on database errors
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver) {
+            return sNameValueCache.getStringsForUser(resolver, null, UserHandle.myUserId())
+                    != null;
+        }
+
+        /**
+         * Atomically store several name/value pairs into the database with a single transaction
+         * and a single change notification.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from MKSettings.System"
+                            + " to MKSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -1544,6 +2065,12 @@ public final class MKSettings {
          */
         public static final String T9_SEARCH_INPUT_LOCALE = "t9_search_input_locale";
 
+        // Loaded on first use; the available locales don't change while the process runs
+        private static final class AvailableLocalesHolder {
+            static final HashSet<Locale> LOCALES =
+                    new HashSet<Locale>(Arrays.asList(Locale.getAvailableLocales()));
+        }
+
         /** @hide */
         public static final Validator T9_SEARCH_INPUT_LOCALE_VALIDATOR =
                 new Validator() {
@@ -1552,8 +2079,7 @@ public final class MKSettings {
                         if (TextUtils.isEmpty(value)) {
                             return true;
                         }
-                        final Locale locale = new Locale(value);
-                        return ArrayUtils.contains(Locale.getAvailableLocales(), locale);
+                        return AvailableLocalesHolder.LOCALES.contains(new Locale(value));
                     }
                 };
 
@@ -2047,11 +2573,14 @@ public final class MKSettings {
                 MKSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK,
         };
 
+        private static final HashSet<String> LEGACY_SYSTEM_SETTINGS_SET =
+                new HashSet<String>(Arrays.asList(LEGACY_SYSTEM_SETTINGS));
+
         /**
          * @hide
          */
         public static boolean isLegacySetting(String key) {
-            return ArrayUtils.contains(LEGACY_SYSTEM_SETTINGS, key);
+            return LEGACY_SYSTEM_SETTINGS_SET.contains(key);
         }
 
         /**
@@ -2079,7 +2608,7 @@ public final class MKSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>();
         static {
             VALIDATORS.put(AEGIS_WARDEN_FORCE_STOP, AEGIS_WARDEN_FORCE_STOP_VALIDATOR);
             VALIDATORS.put(STATUS_BAR_NETWORK_TRAFFIC_STYLE, STATUS_BAR_NETWORK_TRAFFIC_STYLE_VALIDATOR);
@@ -2231,11 +2760,17 @@ public final class MKSettings {
 
         public static final String SYS_PROP_MK_SETTING_VERSION = "sys.mk_settings_secure_version";
 
+        /** @hide */
+        public static final String SYS_PROP_MK_SETTING_GENERATIONS = "sys.mk_settings_secure_gens";
+
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 SYS_PROP_MK_SETTING_VERSION,
+                SYS_PROP_MK_SETTING_GENERATIONS,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_GET_MULTI_SECURE,
+                CALL_METHOD_PUT_MULTI_SECURE);
 
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
@@ -2337,6 +2872,87 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database with a single transaction.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return a map from each name to its value, which is null if not present, or null on
+         *         database errors
+         * @hide
+         */
+        public static Map<String, String> getStrings(ContentResolver resolver, String... names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                String[] names, int userId) {
+            ArrayList<String> moved = null;
+            if (names != null) {
+                for (String name : names) {
+                    if (MOVED_TO_GLOBAL.contains(name)) {
+                        if (moved == null) {
+                            moved = new ArrayList<String>();
+                        }
+                        moved.add(name);
+                    }
+                }
+            }
+            if (moved == null) {
+                return sNameValueCache.getStringsForUser(resolver, names, userId);
+            }
+
+            Log.w(TAG, "Settings " + moved + " have moved from MKSettings.Secure"
+                    + " to MKSettings.Global, values are unchanged.");
+            ArrayList<String> remaining = new ArrayList<String>(Arrays.asList(names));
+            remaining.removeAll(moved);
+            Map<String, String> result = sNameValueCache.getStringsForUser(resolver,
+                    remaining.toArray(new String[remaining.size()]), userId);
+            if (result != null) {
+                for (String name : moved) {
+                    result.put(name, MKSettings.Global.getStringForUser(resolver, name, userId));
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Fetch the whole table into the local cache with a single transaction, so that
+         * subsequent lookups for the calling user are served without IPC until the table changes.
+         * @param resolver to access the database with
+         * @return true if the table was fetched, false on database errors
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver) {
+            return sNameValueCache.getStringsForUser(resolver, null, UserHandle.myUserId())
+                    != null;
+        }
+
+        /**
+         * Atomically store several name/value pairs into the database with a single transaction
+         * and a single change notification.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from MKSettings.Secure"
+                            + " to MKSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3004,11 +3620,14 @@ public final class MKSettings {
                 MKSettings.Secure.LOCK_PASS_TO_SECURITY_VIEW
         };
 
+        private static final HashSet<String> LEGACY_SECURE_SETTINGS_SET =
+                new HashSet<String>(Arrays.asList(LEGACY_SECURE_SETTINGS));
+
         /**
          * @hide
          */
         public static boolean isLegacySetting(String key) {
-            return ArrayUtils.contains(LEGACY_SECURE_SETTINGS, key);
+            return LEGACY_SECURE_SETTINGS_SET.contains(key);
         }
 
         /**
@@ -3061,7 +3680,7 @@ public final class MKSettings {
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
+                new HashMap<String, Validator>();
         static {
             VALIDATORS.put(PROTECTED_COMPONENTS, PROTECTED_COMPONENTS_VALIDATOR);
             VALIDATORS.put(PROTECTED_COMPONENT_MANAGERS, PROTECTED_COMPONENTS_MANAGER_VALIDATOR);
@@ -3093,11 +3712,17 @@ public final class MKSettings {
 
         public static final String SYS_PROP_MK_SETTING_VERSION = "sys.mk_settings_global_version";
 
+        /** @hide */
+        public static final String SYS_PROP_MK_SETTING_GENERATIONS = "sys.mk_settings_global_gens";
+
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 SYS_PROP_MK_SETTING_VERSION,
+                SYS_PROP_MK_SETTING_GENERATIONS,
                 CONTENT_URI,
                 CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL);
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_GET_MULTI_GLOBAL,
+                CALL_METHOD_PUT_MULTI_GLOBAL);
 
         // region Methods
 
@@ -3183,6 +3808,54 @@ public final class MKSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Look up several names in the database with a single transaction.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return a map from each name to its value, which is null if not present, or null on
+         *         database errors
+         * @hide
+         */
+        public static Map<String, String> getStrings(ContentResolver resolver, String... names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsForUser(ContentResolver resolver,
+                String[] names, int userId) {
+            return sNameValueCache.getStringsForUser(resolver, names, userId);
+        }
+
+        /**
+         * Fetch the whole table into the local cache with a single transaction, so that
+         * subsequent lookups for the calling user are served without IPC until the table changes.
+         * @param resolver to access the database with
+         * @return true if the table was fetched, false on database errors
+         * @hide
+         */
+        public static boolean prefetch(ContentResolver resolver) {
+            return sNameValueCache.getStringsForUser(resolver, null, UserHandle.myUserId())
+                    != null;
+        }
+
+        /**
+         * Atomically store several name/value pairs into the database with a single transaction
+         * and a single change notification.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -3515,11 +4188,14 @@ public final class MKSettings {
                 MKSettings.Global.WIFI_AUTO_PRIORITIES_CONFIGURATION
         };
 
+        private static final HashSet<String> LEGACY_GLOBAL_SETTINGS_SET =
+                new HashSet<String>(Arrays.asList(LEGACY_GLOBAL_SETTINGS));
+
         /**
          * @hide
          */
         public static boolean isLegacySetting(String key) {
-            return ArrayUtils.contains(LEGACY_GLOBAL_SETTINGS, key);
+            return LEGACY_GLOBAL_SETTINGS_SET.contains(key);
         }
 
         /**
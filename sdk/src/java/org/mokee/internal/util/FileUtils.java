@@ -16,19 +16,29 @@
 
 package org.mokee.internal.util;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.ArrayMap;
 import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 
 public final class FileUtils {
     private static final String TAG = "FileUtils";
 
+    // Pooled nodes, keyed by path
+    private static final ArrayMap<String, Node> sNodes = new ArrayMap<String, Node>();
+
     private FileUtils() {
         // This class is not supposed to be instantiated
     }
@@ -122,4 +132,164 @@ public final class FileUtils {
         final File file = new File(fileName);
         return file.exists() && file.canWrite();
     }
+
+    /**
+     * Returns the pooled {@link Node} for the given file, creating it on first use.
+     * All callers asking for the same path share one node.
+     */
+    public static Node getNode(String fileName) {
+        synchronized (sNodes) {
+            Node node = sNodes.get(fileName);
+            if (node == null) {
+                node = new Node(fileName);
+                sNodes.put(fileName, node);
+            }
+            return node;
+        }
+    }
+
+    /**
+     * Dumps the statistics of all pooled nodes
+     */
+    public static void dumpNodes(PrintWriter pw) {
+        synchronized (sNodes) {
+            for (int i = 0; i < sNodes.size(); i++) {
+                pw.println("  " + sNodes.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * A persistent handle to a single-value file such as a sysfs node.
+     *
+     * Unlike {@link FileUtils#readOneLine(String)} and {@link FileUtils#writeLine(String, String)},
+     * the file descriptors are kept open and every access rewinds to the start of the file, so
+     * repeated accesses do not pay for open and close. Writes of the value that was last written
+     * successfully are skipped. Call {@link #invalidate()} if the value may have been changed by
+     * someone else, e.g. the kernel resetting it on suspend.
+     *
+     * The file is never truncated, so this is only suitable for files whose writes replace the
+     * whole value, as sysfs and procfs attributes do.
+     */
+    public static final class Node {
+        private final String mFileName;
+
+        private FileDescriptor mReadFd;
+        private FileDescriptor mWriteFd;
+        private final byte[] mReadBuffer = new byte[512];
+
+        private String mLastWritten;
+
+        private long mWrites;
+        private long mSkippedWrites;
+        private long mFailures;
+        private long mTotalWriteNanos;
+        private long mMaxWriteNanos;
+
+        private Node(String fileName) {
+            mFileName = fileName;
+        }
+
+        public String getFileName() {
+            return mFileName;
+        }
+
+        /**
+         * Reads the first line of text from the node.
+         *
+         * @return the read line contents, or null on failure
+         */
+        public synchronized String readOneLine() {
+            try {
+                if (mReadFd == null) {
+                    mReadFd = Os.open(mFileName, OsConstants.O_RDONLY, 0);
+                }
+                final int count = Os.pread(mReadFd, mReadBuffer, 0, mReadBuffer.length, 0);
+                int end = 0;
+                while (end < count && mReadBuffer[end] != '\n' && mReadBuffer[end] != '\r') {
+                    end++;
+                }
+                final String line = new String(mReadBuffer, 0, end, StandardCharsets.UTF_8);
+                if (mLastWritten != null && !mLastWritten.equals(line)) {
+                    // Changed behind our back, don't skip the next write
+                    mLastWritten = null;
+                }
+                return count > 0 ? line : null;
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Could not read from file " + mFileName, e);
+                mReadFd = closeQuietly(mReadFd);
+                return null;
+            }
+        }
+
+        /**
+         * Writes the given value into the node, unless it was the last value written.
+         *
+         * @return true on success, false on failure
+         */
+        public synchronized boolean writeLine(String value) {
+            if (value.equals(mLastWritten)) {
+                mSkippedWrites++;
+                return true;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                if (mWriteFd == null) {
+                    mWriteFd = Os.open(mFileName, OsConstants.O_WRONLY, 0);
+                }
+                final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                Os.pwrite(mWriteFd, bytes, 0, bytes.length, 0);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Could not write to file " + mFileName, e);
+                mWriteFd = closeQuietly(mWriteFd);
+                mLastWritten = null;
+                mFailures++;
+                return false;
+            }
+
+            final long elapsed = System.nanoTime() - start;
+            mWrites++;
+            mTotalWriteNanos += elapsed;
+            mMaxWriteNanos = Math.max(mMaxWriteNanos, elapsed);
+            mLastWritten = value;
+            return true;
+        }
+
+        /**
+         * Forgets the last written value, so that the next write always goes through
+         */
+        public synchronized void invalidate() {
+            mLastWritten = null;
+        }
+
+        /**
+         * Closes the file descriptors. They are reopened on the next access.
+         */
+        public synchronized void close() {
+            mReadFd = closeQuietly(mReadFd);
+            mWriteFd = closeQuietly(mWriteFd);
+            mLastWritten = null;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mFileName + ": writes=" + mWrites + " skipped=" + mSkippedWrites +
+                    " failures=" + mFailures +
+                    " avgUs=" + (mWrites > 0 ? mTotalWriteNanos / mWrites / 1000 : 0) +
+                    " maxUs=" + (mMaxWriteNanos / 1000) +
+                    " last=" + mLastWritten;
+        }
+
+        private static FileDescriptor closeQuietly(FileDescriptor fd) {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    // Ignored, not much we can do anyway
+                }
+            }
+            return null;
+        }
+    }
 }